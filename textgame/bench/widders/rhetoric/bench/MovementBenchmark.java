@@ -0,0 +1,489 @@
+package widders.rhetoric.bench;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import widders.rhetoric.Active;
+import widders.rhetoric.Container;
+import widders.rhetoric.DebugRoom;
+import widders.rhetoric.DoesNotFitException;
+import widders.rhetoric.Main;
+import widders.rhetoric.Report;
+import widders.rhetoric.Room;
+import widders.rhetoric.Selection;
+import widders.rhetoric.Tasking;
+import widders.rhetoric.content.PlasticBag;
+
+
+/**
+ * Throughput harness for the movement hot path. Replaces eyeballing the
+ * per-second move counts that Main.testConcurrency() writes to the log.
+ *
+ * Every benchmark is run once for each combination of the given parameter
+ * lists, with a fresh world per combination. Each run does some warmup
+ * iterations that are thrown away and then some measured iterations of a
+ * fixed wall-clock length. Results are written as CSV (one row per primary or
+ * secondary score) so runs can be diffed and plotted.
+ *
+ * Arguments are key=value pairs, lists are comma separated:
+ *
+ * bench=add,contention,propagate,         which benchmarks to run
+ *       inventory,select
+ * threads=1,4,16                          worker thread counts
+ * rooms=4                                 number of rooms in the world
+ * objects=500                             number of movable objects
+ * depth=4                                 nesting depth of bag chains
+ * warmup=2                                warmup iterations per run
+ * iterations=5                            measured iterations per run
+ * time=1000                               length of each iteration in ms
+ * tasking=8                               Tasking workers that run the
+ *                                         movement callbacks (default one
+ *                                         per processor, 0 to leave them
+ *                                         queued)
+ * stats=batched                           propagate stats once per epoch
+ *                                         (default immediate)
+ * out=results.csv                         output file (default stdout)
+ *
+ * @author widders
+ */
+public class MovementBenchmark {
+  private static final String[] BENCHMARKS =
+      { "add", "contention", "propagate", "inventory", "select" };
+
+  private static final Report quiet = new Report() {
+    @Override
+    public void report(String text) {
+    }
+
+    @Override
+    public String text() {
+      return null;
+    }
+  };
+
+
+  /** Parameters of a single run */
+  private static class Params {
+    int threads, rooms, objects, depth;
+
+    Params(int threads, int rooms, int objects, int depth) {
+      this.threads = threads;
+      this.rooms = rooms;
+      this.objects = objects;
+      this.depth = depth;
+    }
+  }
+
+  /** The work done by one benchmark thread in one iteration */
+  private interface Operation {
+    /** Performs one operation, returning false if it was rejected */
+    boolean run(Random rand);
+  }
+
+  /** A world built for one run of one benchmark */
+  private static abstract class Fixture {
+    final List<Room> rooms = new ArrayList<Room>();
+
+    /** Returns the operation for the worker with the given index */
+    abstract Operation operation(int worker);
+
+    /** Destroys everything in the world */
+    void tearDown() {
+      for (Room room : rooms)
+        room.destroy(Main.creator);
+    }
+  }
+
+  /** Totals gathered from one iteration */
+  private static class Sample {
+    long ops, rejected, deferrals, conflicts;
+    double seconds;
+  }
+
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> opts = new LinkedHashMap<String, String>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 1)
+        throw new IllegalArgumentException("Expected key=value, got: " + arg);
+      opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+
+    String[] benches = list(opts, "bench", String.join(",", BENCHMARKS));
+    int[] threads = ints(opts, "threads", "1,4,16");
+    int[] rooms = ints(opts, "rooms", "4");
+    int[] objects = ints(opts, "objects", "500");
+    int[] depths = ints(opts, "depth", "4");
+    int warmup = Integer.parseInt(get(opts, "warmup", "2"));
+    int iterations = Integer.parseInt(get(opts, "iterations", "5"));
+    long time = Long.parseLong(get(opts, "time", "1000"));
+    int tasking = Integer.parseInt(get(opts, "tasking",
+        String.valueOf(Runtime.getRuntime().availableProcessors())));
+    if (tasking > 0)
+      Tasking.start(tasking);
+    Container.batchStats(get(opts, "stats", "immediate").equals("batched"));
+
+    PrintStream out = opts.containsKey("out")
+        ? new PrintStream(opts.get("out"))
+        : System.out;
+    out.println("\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\","
+        + "\"Score Error (stdev)\",\"Unit\",\"Param: depth\","
+        + "\"Param: objects\",\"Param: rooms\"");
+
+    try {
+      for (String bench : benches)
+        for (int t : threads)
+          for (int r : rooms)
+            for (int o : objects)
+              for (int d : depths)
+                run(out, bench, new Params(t, r, o, d),
+                    warmup, iterations, time);
+    } finally {
+      out.flush();
+      if (out != System.out)
+        out.close();
+    }
+    // the world's static objects keep non-daemon threads around
+    System.exit(0);
+  }
+
+  private static String get(Map<String, String> opts, String key, String def) {
+    String value = opts.get(key);
+    return value == null ? def : value;
+  }
+
+  private static String[] list(Map<String, String> opts, String key,
+                               String def) {
+    return get(opts, key, def).split(",");
+  }
+
+  private static int[] ints(Map<String, String> opts, String key, String def) {
+    String[] parts = list(opts, key, def);
+    int[] result = new int[parts.length];
+    for (int i = 0; i < parts.length; i++)
+      result[i] = Integer.parseInt(parts[i].trim());
+    return result;
+  }
+
+  /** Runs one benchmark with one set of parameters and reports on it */
+  private static void run(PrintStream out, String bench, Params p,
+                          int warmup, int iterations, long time)
+      throws InterruptedException {
+    Fixture fixture = build(bench, p);
+    try {
+      for (int i = 0; i < warmup; i++)
+        iterate(fixture, p.threads, time);
+
+      Sample[] samples = new Sample[iterations];
+      for (int i = 0; i < iterations; i++)
+        samples[i] = iterate(fixture, p.threads, time);
+
+      double[] throughput = new double[iterations];
+      double[] deferrals = new double[iterations];
+      double[] conflicts = new double[iterations];
+      double[] rejected = new double[iterations];
+      for (int i = 0; i < iterations; i++) {
+        Sample s = samples[i];
+        throughput[i] = s.ops / s.seconds;
+        deferrals[i] = s.ops == 0 ? 0d : (double)s.deferrals / s.ops;
+        conflicts[i] = s.ops == 0 ? 0d : (double)s.conflicts / s.ops;
+        rejected[i] = s.ops == 0 ? 0d : (double)s.rejected / s.ops;
+      }
+
+      report(out, bench, p, throughput, "ops/s");
+      if (!bench.equals("select")) {
+        report(out, bench + ":deferrals", p, deferrals, "#/op");
+        report(out, bench + ":conflicts", p, conflicts, "#/op");
+        report(out, bench + ":rejected", p, rejected, "#/op");
+      }
+    } finally {
+      fixture.tearDown();
+    }
+  }
+
+  /** Runs all workers against the fixture for one iteration */
+  private static Sample iterate(final Fixture fixture, int threadCount,
+                                final long time)
+      throws InterruptedException {
+    final CountDownLatch ready = new CountDownLatch(threadCount);
+    final CountDownLatch start = new CountDownLatch(1);
+    final long[] ops = new long[threadCount];
+    final long[] rejected = new long[threadCount];
+    final long[] window = new long[2];
+    final Thread[] workers = new Thread[threadCount];
+    final Throwable[] failure = new Throwable[1];
+
+    for (int i = 0; i < threadCount; i++) {
+      final int index = i;
+      final Operation op = fixture.operation(i);
+      workers[i] = new Thread("Benchmark" + i) {
+        @Override
+        public void run() {
+          Random rand = ThreadLocalRandom.current();
+          long done = 0, refused = 0;
+          ready.countDown();
+          try {
+            start.await();
+            long until = window[1];
+            do {
+              // check the clock only every few operations
+              for (int n = 0; n < 16; n++) {
+                if (!op.run(rand))
+                  refused++;
+                done++;
+              }
+            } while (System.nanoTime() < until);
+          } catch (Throwable ex) {
+            failure[0] = ex;
+          }
+          ops[index] = done;
+          rejected[index] = refused;
+        }
+      };
+      workers[i].start();
+    }
+
+    ready.await();
+    int deferralsBefore = Container.totalReservationDeferrals();
+    int conflictsBefore = Container.totalOptimisticConflicts();
+    window[0] = System.nanoTime();
+    window[1] = window[0] + time * 1000000L;
+    start.countDown();
+    for (Thread worker : workers)
+      worker.join();
+    long elapsed = System.nanoTime() - window[0];
+
+    if (failure[0] != null)
+      throw new Error("Benchmark worker failed", failure[0]);
+
+    Sample s = new Sample();
+    for (int i = 0; i < threadCount; i++) {
+      s.ops += ops[i];
+      s.rejected += rejected[i];
+    }
+    s.deferrals = Container.totalReservationDeferrals() - deferralsBefore;
+    s.conflicts = Container.totalOptimisticConflicts() - conflictsBefore;
+    s.seconds = elapsed / 1e9;
+    return s;
+  }
+
+  /** Writes a row of results */
+  private static void report(PrintStream out, String name, Params p,
+                             double[] samples, String unit) {
+    double mean = 0d;
+    for (double s : samples)
+      mean += s;
+    mean /= samples.length;
+    double variance = 0d;
+    for (double s : samples)
+      variance += (s - mean) * (s - mean);
+    double stdev = samples.length > 1
+        ? Math.sqrt(variance / (samples.length - 1))
+        : Double.NaN;
+
+    out.println(String.format(Locale.ROOT,
+                              "\"%s\",\"thrpt\",%d,%d,%.6f,%.6f,\"%s\",%d,%d,%d",
+                              name, p.threads, samples.length, mean, stdev,
+                              unit, p.depth, p.objects, p.rooms));
+    out.flush();
+  }
+
+
+  private static Fixture build(String bench, Params p) {
+    switch (bench) {
+      case "add":
+        return new ScatterFixture(p);
+      case "contention":
+        return new ContentionFixture(p);
+      case "propagate":
+        return new PropagationFixture(p);
+      case "inventory":
+        return new InventoryFixture(p);
+      case "select":
+        return new SelectionFixture(p);
+      default:
+        throw new IllegalArgumentException("Unknown benchmark " + bench
+            + ", expected one of " + Arrays.toString(BENCHMARKS));
+    }
+  }
+
+  /** Creates and emplaces a bag, failing loudly if it does not fit */
+  private static Active bag(Container in) {
+    Active bag = new PlasticBag(in, "in");
+    try {
+      bag.init();
+    } catch (DoesNotFitException ex) {
+      throw new Error("Benchmark world does not fit: " + ex.getMessage(), ex);
+    }
+    return bag;
+  }
+
+  /** Creates a chain of [depth] bags nested in each other, returning the
+   * innermost */
+  private static Active chain(Container in, int depth) {
+    Container c = in;
+    for (int i = 0; i < depth; i++)
+      c = bag(c);
+    return (Active)c;
+  }
+
+
+  /**
+   * Random moves of random objects into random rooms and objects, the same
+   * workload as Main.testConcurrency().
+   */
+  private static class ScatterFixture extends Fixture {
+    final Container[] deck;
+
+    ScatterFixture(Params p) {
+      deck = new Container[p.rooms + p.objects];
+      for (int i = 0; i < p.rooms; i++) {
+        Room room = new DebugRoom();
+        rooms.add(room);
+        deck[i] = room;
+      }
+      Random rand = new Random(p.objects);
+      for (int i = 0; i < p.objects; i++)
+        deck[p.rooms + i] = bag(deck[rand.nextInt(p.rooms)]);
+    }
+
+    @Override
+    Operation operation(int worker) {
+      final int roomCount = rooms.size();
+      final int objectCount = deck.length - roomCount;
+      return rand -> {
+        int movingIndex = rand.nextInt(objectCount) + roomCount;
+        int destinationIndex = rand.nextInt(deck.length - 1);
+        if (destinationIndex >= movingIndex)
+          destinationIndex++;
+        return deck[destinationIndex].add((Active)deck[movingIndex], "in",
+                                          Main.creator, quiet);
+      };
+    }
+  }
+
+  /**
+   * Every thread moves objects in and out of the innermost bag of the same
+   * chain, so every move reserves the same ancestors.
+   */
+  private static class ContentionFixture extends Fixture {
+    final Room room;
+    final Active innermost;
+    final Active[] pebbles;
+
+    ContentionFixture(Params p) {
+      room = new DebugRoom();
+      rooms.add(room);
+      innermost = chain(room, p.depth);
+      pebbles = new Active[p.objects];
+      for (int i = 0; i < p.objects; i++)
+        pebbles[i] = bag(room);
+    }
+
+    @Override
+    Operation operation(int worker) {
+      return rand -> {
+        Active moving = pebbles[rand.nextInt(pebbles.length)];
+        Container destination = moving.container() == innermost
+            ? room
+            : innermost;
+        return destination.add(moving, "in", Main.creator, quiet);
+      };
+    }
+  }
+
+  /**
+   * Each thread has its own room and chain of bags [depth] deep, and moves its
+   * own object between the innermost bag and the room. Nothing is shared, so
+   * the score is dominated by propagating stats up and down the chain.
+   */
+  private static class PropagationFixture extends Fixture {
+    final Params p;
+    final List<Operation> workers = new ArrayList<Operation>();
+
+    PropagationFixture(Params p) {
+      this.p = p;
+    }
+
+    @Override
+    synchronized Operation operation(int worker) {
+      // each worker keeps its own chain across iterations
+      while (workers.size() <= worker) {
+        final Room room = new DebugRoom();
+        rooms.add(room);
+        final Active innermost = chain(room, p.depth);
+        final Active moving = bag(room);
+        workers.add(rand -> {
+          Container destination = moving.container() == innermost
+              ? room
+              : innermost;
+          return destination.add(moving, "in", Main.creator, quiet);
+        });
+      }
+      return workers.get(worker);
+    }
+  }
+
+  /**
+   * Each thread has its own chain of bags [depth] deep, like a backpack, all
+   * in the same room. At the bottom are two bags, and the thread moves its
+   * own object back and forth between them, so the room and everything above
+   * the two bags sees no net change.
+   */
+  private static class InventoryFixture extends Fixture {
+    final Params p;
+    final Room room;
+    final List<Operation> workers = new ArrayList<Operation>();
+
+    InventoryFixture(Params p) {
+      this.p = p;
+      room = new DebugRoom();
+      rooms.add(room);
+    }
+
+    @Override
+    synchronized Operation operation(int worker) {
+      while (workers.size() <= worker) {
+        final Active pack = chain(room, Math.max(1, p.depth));
+        final Active left = bag(pack);
+        final Active right = bag(pack);
+        final Active moving = bag(left);
+        workers.add(rand -> {
+          Container destination = moving.container() == left ? right : left;
+          return destination.add(moving, "in", Main.creator, quiet);
+        });
+      }
+      return workers.get(worker);
+    }
+  }
+
+  /**
+   * A room holding [objects] bags, arranged in chains [depth] deep. Every
+   * thread repeatedly selects every bag in the room, deeply.
+   */
+  private static class SelectionFixture extends Fixture {
+    final Room room;
+
+    SelectionFixture(Params p) {
+      room = new DebugRoom();
+      rooms.add(room);
+      int depth = Math.max(1, p.depth);
+      for (int made = 0; made < p.objects; made += depth)
+        chain(room, Math.min(depth, p.objects - made));
+    }
+
+    @Override
+    Operation operation(int worker) {
+      return rand -> !Selection.selectDeep(room, a -> a.is("bag")).isEmpty();
+    }
+  }
+}
@@ -1,13 +1,14 @@
 package widders.rhetoric;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
+import widders.util.Bits;
+import widders.util.Interner;
+import widders.util.SortedInts;
 import widders.util.Value;
+import widders.util.ValueLayout;
+import widders.util.ValueTable;
 
 
 /**
@@ -28,30 +29,60 @@ public abstract class Active extends Container {
   // target(), targeted() and see() are done already
   
   
-  /* The set of words that identify this object. All lowercase. */
+  /* Identity, properties and classification are never changed in place, only
+   * replaced, so they can be read without locking. Writers hold wordLock,
+   * which also guards indexedIn. */
+  private final ReentrantLock wordLock = new ReentrantLock();
+  
+  /* The set of words that identify this object. All lowercase, sorted. */
   private String[] identity;
+  /* The dictionary ids of the identity words, sorted */
+  private int[] identityIDs;
+  
+  /* The dictionary ids of the words (adjectives only, basically) that specify
+   * this object's current state (they are treated as a part of the identity
+   * in matches()). Sorted; replaced rather than changed. */
+  private volatile int[] properties = SortedInts.EMPTY;
+  
+  /* The classifications that this Thing fits (such as "container"), as a
+   * bitset of their ids. These never act as part of the identity, but they can
+   * be accessed. Should be all lowercase, but is NOT FORCED CASE (this is for
+   * efficiency since classification won't be exposed directly to the user).
+   * Replaced rather than changed. */
+  private volatile long[] classification = Bits.EMPTY;
+  
+  /* The Room whose word index this object is listed in */
+  private volatile Room indexedIn;
   
-  /* The set of words (adjectives only, basically) that specify this object's
-   * current state (they are treated as a part of the identity in matches().
-   * All lowercase. */
-  private Set<String> properties;// = new HashSet<String>();
+  private static final Active[] NO_ACTIVES = new Active[0];
   
-  /* The set of classifications that this Thing fits (such as "container").
-   * These never act as part of the identity, but they can be accessed. Should
-   * be all lowercase, but is NOT FORCED CASE (this is for efficiency since
-   * classification won't be exposed directly to the user).
-   * Classifications are interned on addition (two identical classifications
-   * are guaranteed to be the same String object). */
-  private Set<String> classification;// = new HashSet<String>();
+  /* Guards changes to watchers and watching. A watch changes the lists of two
+   * objects, so both are locked, in iD order. */
+  private final ReentrantLock watchLock = new ReentrantLock();
   
-  /* The list of Active objects monitoring this object */
-  private Set<Active> watchers;// = new LinkedHashSet<Active>();
+  /* The list of Active objects monitoring this object. Replaced rather than
+   * changed, so it can be iterated without locking. */
+  private volatile Active[] watchers = NO_ACTIVES;
   
   /* Contains all the Active objects that this Watcher is registered with */
-  private Set<Active> watching;// = new LinkedHashSet<Active>();
+  private volatile Active[] watching = NO_ACTIVES;
   
-  /* The set of values associated with this object */
-  private Map<String, Value> values;// = new Hashtable<String, Value>();
+  /* The names of values, shared by all objects */
+  private static final Interner valueNames = new Interner();
+  
+  /* The root value layout of each class of Active object, so that objects of
+   * the same class share their layouts */
+  private static final ClassValue<ValueLayout> valueLayouts =
+      new ClassValue<ValueLayout>() {
+        @Override
+        protected ValueLayout computeValue(Class<?> c) {
+          return new ValueLayout();
+        }
+      };
+  
+  /* The set of values associated with this object; created when the first
+   * value is set */
+  private volatile ValueTable values;
   
   
   protected Active(Name n, String[] ident, String[] classes,
@@ -92,165 +123,266 @@ public abstract class Active extends Container {
     
     Arrays.sort(t);
     identity = t;
+    identityIDs = SortedInts.of(Words.intern(t));
     
     return true;
   }
   
+  /** Returns the words of the given ids */
+  private static String[] words(int[] ids) {
+    String[] x = new String[ids.length];
+    for (int i = 0; i < ids.length; i++)
+      x[i] = Words.word(ids[i]);
+    return x;
+  }
+  
   /** Returns the basic identity */
-  public final synchronized String[] basicIdentity() {
+  public final String[] basicIdentity() {
     return Arrays.copyOf(identity, identity.length);
   }
   
   /** Returns the current identity (including identity and properties) */
-  public final synchronized String[] identity() {
-    if (properties == null) {
-      return basicIdentity();
-    } else {
-      String[] x =
-          properties.toArray(new String[identity.length + properties.size()]);
-      System.arraycopy(identity, 0, x, properties.size(), identity.length);
-      return x;
-    }
+  public final String[] identity() {
+    int[] p = properties;
+    String[] x = new String[p.length + identity.length];
+    for (int i = 0; i < p.length; i++)
+      x[i] = Words.word(p[i]);
+    System.arraycopy(identity, 0, x, p.length, identity.length);
+    return x;
   }
   
   /** Returns the current properties */
-  public final synchronized String[] properties() {
-    return properties == null
-        ? new String[0]
-        : properties.toArray(new String[properties.size()]);
+  public final String[] properties() {
+    return words(properties);
   }
   
   /** Returns the number of properties */
-  public final synchronized int propertyCount() {
-    return properties == null
-        ? 0
-        : properties.size();
+  public final int propertyCount() {
+    return properties.length;
   }
   
   /**
    * Adds the given property and returns true if it was really added or false if
    * it was already there
    */
-  public final synchronized boolean addProperty(String prop) {
-    if (properties == null) properties = new HashSet<String>();
-    return properties.add(prop.toLowerCase());
+  public final boolean addProperty(String prop) {
+    int id = Words.intern(prop);
+    wordLock.lock();
+    try {
+      int[] old = properties;
+      if ((properties = SortedInts.add(old, id)) == old)
+        return false;
+      if (indexedIn != null)
+        indexedIn.index.add(id, this);
+      return true;
+    } finally {
+      wordLock.unlock();
+    }
   }
   
   /** Batch adds properties */
-  public final synchronized void addProperties(String... props) {
-    if (props != null && props.length > 0) {
-      if (properties == null) properties = new HashSet<String>();
-      for (String p : props) {
-        properties.add(p.toLowerCase());
-      }
-    }
+  public final void addProperties(String... props) {
+    if (props != null)
+      for (String p : props)
+        addProperty(p);
   }
   
   /**
    * Removes the given property from the properties list and returns true if and
    * only if it was really there to begin with
    */
-  public final synchronized boolean removeProperty(String prop) {
-    return properties == null
-        ? false
-        : properties.remove(prop.toLowerCase());
+  public final boolean removeProperty(String prop) {
+    int id = Words.find(prop);
+    if (id < 0) return false;
+    wordLock.lock();
+    try {
+      int[] old = properties;
+      if ((properties = SortedInts.remove(old, id)) == old)
+        return false;
+      if (indexedIn != null && !SortedInts.contains(identityIDs, id))
+        indexedIn.index.remove(id, this);
+      return true;
+    } finally {
+      wordLock.unlock();
+    }
   }
   
-  public final synchronized void removeProperties(String... prop) {
-    if (prop != null && properties != null)
+  public final void removeProperties(String... prop) {
+    if (prop != null)
       for (String p : prop)
-        properties.remove(p.toLowerCase());
+        removeProperty(p);
   }
   
   /** Returns true iff the object has the given property set */
-  public final synchronized boolean hasProperty(String prop) {
-    return properties == null
-        ? false
-        : properties.contains(prop.toLowerCase());
+  public final boolean hasProperty(String prop) {
+    int id = Words.find(prop);
+    return id >= 0 && SortedInts.contains(properties, id);
   }
   
   /** Returns true iff the object has all the given properties set */
-  public final synchronized boolean hasProperties(String... properties) {
+  public final boolean hasProperties(String... properties) {
     if (properties == null)
       return true;
     
-    for (String prop : properties)
-      if (!hasProperty(prop))
+    int[] p = this.properties;
+    for (String prop : properties) {
+      int id = Words.find(prop);
+      if (id < 0 || !SortedInts.contains(p, id))
         return false;
+    }
     return true;
   }
   
   /** Returns true iff ident is found in either identity or properties */
-  public final synchronized boolean is(String ident) {
-    ident = ident.toLowerCase();
-    return Arrays.binarySearch(identity, ident) >= 0
-        || (properties != null && properties.contains(ident));
+  public final boolean is(String ident) {
+    int id = Words.find(ident);
+    return id >= 0 && is(id);
   }
   
   /** Returns true iff this object completely matches the given identity */
-  public final synchronized boolean is(String... ident) {
+  public final boolean is(String... ident) {
     if (ident == null)
       return true;
     
-    for (String part : ident)
-      if (!is(part))
+    int[] words = Words.find(ident);
+    return words != null && is(words);
+  }
+  
+  /**
+   * Returns true iff the word with the given dictionary id is found in either
+   * identity or properties
+   */
+  public final boolean is(int word) {
+    return SortedInts.contains(identityIDs, word)
+        || SortedInts.contains(properties, word);
+  }
+  
+  /**
+   * Returns true iff this object matches every word with the given dictionary
+   * ids, as from Words.find(String...); null, for a phrase with an unknown
+   * word, matches nothing
+   */
+  public final boolean is(int... words) {
+    if (words == null)
+      return false;
+    
+    int[] p = properties;
+    for (int word : words)
+      if (!SortedInts.contains(identityIDs, word)
+          && !SortedInts.contains(p, word))
         return false; // did not match the current identifier
     return true; // all identifiers matched
   }
   
+  /**
+   * Moves this object's words into the index of the Room it is now in, or out
+   * of any index if it is no longer in the world. Returns false if it was
+   * already listed in the right place.
+   * 
+   * Whatever changes the Room an object is in calls this afterward for the
+   * object and, if it returns true, for its contents. The Room is taken from
+   * the container, or from where the container is indexed, rather than by
+   * walking up the chain; so an object whose container is indexed in the
+   * wrong place for a moment follows it when it is put right, and whichever
+   * of several racing calls runs last leaves the index right.
+   */
+  final boolean reindex() {
+    wordLock.lock();
+    try {
+      Container c = container();
+      Room now = c instanceof Room ? (Room)c
+          : c != null ? ((Active)c).indexedIn
+          : null;
+      
+      if (now == indexedIn)
+        return false;
+      if (indexedIn != null) {
+        indexedIn.index.removeAll(identityIDs, this);
+        indexedIn.index.removeAll(properties, this);
+        indexedIn.index.count(classification, -1);
+      }
+      if (now != null) {
+        now.index.addAll(identityIDs, this);
+        now.index.addAll(properties, this);
+        now.index.count(classification, 1);
+      }
+      indexedIn = now;
+      return true;
+    } finally {
+      wordLock.unlock();
+    }
+  }
+  
   /** Returns the current classifications */
-  public final synchronized String[] classification() {
-    return classification == null
-        ? new String[0]
-        : classification.toArray(new String[classification.size()]);
+  public final String[] classification() {
+    int[] ids = Bits.toArray(classification);
+    String[] x = new String[ids.length];
+    for (int i = 0; i < x.length; i++)
+      x[i] = Words.className(ids[i]);
+    return x;
   }
   
   /** Returns the total number of classifications on this object */
-  public final synchronized int classificationCount() {
-    return classification == null
-        ? 0
-        : classification.size();
+  public final int classificationCount() {
+    return Bits.cardinality(classification);
   }
   
   /** Classifies the object as [c] and returns true only if it wasn't already */
-  public final synchronized boolean classify(String c) {
-    if (classification == null) classification = new HashSet<String>();
-    return classification.add(c.intern());
+  public final boolean classify(String c) {
+    int id = Words.internClass(c);
+    wordLock.lock();
+    try {
+      long[] old = classification;
+      if ((classification = Bits.set(old, id)) == old)
+        return false;
+      if (indexedIn != null)
+        indexedIn.index.count(id, 1);
+      return true;
+    } finally {
+      wordLock.unlock();
+    }
   }
   
   /** Batch adds classifications */
-  public final synchronized void classify(String... classes) {
+  public final void classify(String... classes) {
     if (classes == null || classes.length == 0)
       return;
-    if (this.classification == null)
-      this.classification = new HashSet<String>(); 
     for (String c : classes)
-      this.classification.add(c.intern());
+      classify(c);
   }
   
   /**
    * Declassifies the object from [c] and returns true only if it was already
    * classified as [c]
    */
-  public final synchronized boolean declassify(String c) {
-    return classification == null
-        ? false
-        : classification.remove(c);
+  public final boolean declassify(String c) {
+    int id = Words.findClass(c);
+    if (id < 0) return false;
+    wordLock.lock();
+    try {
+      long[] old = classification;
+      if ((classification = Bits.clear(old, id)) == old)
+        return false;
+      if (indexedIn != null)
+        indexedIn.index.count(id, -1);
+      return true;
+    } finally {
+      wordLock.unlock();
+    }
   }
   
   /** Declassifies the object from every classification given */
-  public final synchronized void declassify(String... classes) {
-    if (classification != null && classes != null) {
+  public final void declassify(String... classes) {
+    if (classes != null) {
       for (String c : classes)
         declassify(c);
     }
   }
   
   /** Returns true iff the object is classified as [c] */
-  public final synchronized boolean isClassified(String c) {
-    return classification == null
-        ? false
-        : classification.contains(c);
+  public final boolean isClassified(String c) {
+    int id = Words.findClass(c);
+    return id >= 0 && Bits.get(classification, id);
   }
   
   /**
@@ -261,10 +393,22 @@ public abstract class Active extends Container {
     if (classes == null || classes.length == 0)
       return true;
     
-    for (String part : classes)
-      if (!isClassified(part))
-        return false;
-    return true;
+    long[] mask = Words.classMask(classes);
+    return mask != null && isClassified(mask);
+  }
+  
+  /**
+   * Returns true iff this object has every classification in [mask], as from
+   * Words.classMask(String...); null, for an unknown classification, matches
+   * nothing
+   */
+  public final boolean isClassified(long[] mask) {
+    return mask != null && Bits.containsAll(classification, mask);
+  }
+  
+  /** Returns true iff this object has any classification in [mask] */
+  public final boolean isClassifiedAny(long[] mask) {
+    return mask != null && Bits.containsAny(classification, mask);
   }
   
   /** The default weight implementation. */
@@ -404,15 +548,76 @@ public abstract class Active extends Container {
     notifyWatchers(actor, "shift", null);
   }
   
-  /** Notifies the watching objects that an action was taken upon this object */
+  /**
+   * Notifies the watching objects that an action was taken upon this object.
+   * If there are more than Main.WATCHER_INLINE_LIMIT of them they are notified
+   * in batches on this object's task lane instead, in the order the actions
+   * happened, so the actor is not held up. The action is also published to
+   * the subscribers of the room this object is in.
+   */
   private void notifyWatchers(Active actor, String verb, Active indirect) {
-    if (watchers == null)
+    Room room = indexedIn;
+    if (room != null)
+      room.events.publish(actor, verb, this, indirect);
+    
+    final Active[] ws = watchers;
+    if (ws.length <= Main.WATCHER_INLINE_LIMIT) {
+      for (Active w : ws)
+        w.see(actor, verb, this, indirect);
       return;
-    for (Active w : watchers) {
-      w.see(actor, verb, this, indirect);
+    }
+    for (int i = 0; i < ws.length; i += Main.WATCHER_BATCH_SIZE) {
+      final int from = i, to = Math.min(i + Main.WATCHER_BATCH_SIZE, ws.length);
+      task(() -> {
+        for (int j = from; j < to; j++)
+          ws[j].see(actor, verb, this, indirect);
+      });
     }
   }
   
+  /** Locks the watch lists of both objects, in a consistent order */
+  private static void lockWatches(Active a, Active b) {
+    if (a.iD < b.iD) {
+      a.watchLock.lock();
+      b.watchLock.lock();
+    } else {
+      b.watchLock.lock();
+      a.watchLock.lock();
+    }
+  }
+  
+  private static void unlockWatches(Active a, Active b) {
+    a.watchLock.unlock();
+    b.watchLock.unlock();
+  }
+  
+  private static int indexOf(Active[] list, Active a) {
+    for (int i = 0; i < list.length; i++)
+      if (list[i] == a)
+        return i;
+    return -1;
+  }
+  
+  /** Returns [list] with [a] appended */
+  private static Active[] with(Active[] list, Active a) {
+    Active[] x = Arrays.copyOf(list, list.length + 1);
+    x[list.length] = a;
+    return x;
+  }
+  
+  /** Returns [list] without [a], or the same list if it was not there */
+  private static Active[] without(Active[] list, Active a) {
+    int i = indexOf(list, a);
+    if (i < 0)
+      return list;
+    if (list.length == 1)
+      return NO_ACTIVES;
+    Active[] x = new Active[list.length - 1];
+    System.arraycopy(list, 0, x, 0, i);
+    System.arraycopy(list, i + 1, x, i, x.length - i);
+    return x;
+  }
+  
   /**
    * Adds [w] to the Watchers list and returns whether the operation was
    * successful
@@ -423,12 +628,15 @@ public abstract class Active extends Container {
     
     if (w == null || w == this)
       return false;
-    if (w.watching == null)
-      w.watching = new LinkedHashSet<Active>();
-    w.watching.add(this);
-    if (watchers == null)
-      watchers = new LinkedHashSet<Active>();
-    watchers.add(w);
+    lockWatches(this, w);
+    try {
+      if (indexOf(watchers, w) < 0) {
+        w.watching = with(w.watching, this);
+        watchers = with(watchers, w);
+      }
+    } finally {
+      unlockWatches(this, w);
+    }
     return true;
   }
   
@@ -437,33 +645,33 @@ public abstract class Active extends Container {
    * begin with
    */
   public final boolean removeWatcher(Active w) {
-    if (watchers == null || w == null)
+    if (w == null || w == this)
       return false;
-    if (w.watching != null && w.watching.remove(this)) {
-      watchers.remove(w);
+    lockWatches(this, w);
+    try {
+      Active[] old = watchers;
+      if ((watchers = without(old, w)) == old)
+        return false;
+      w.watching = without(w.watching, this);
       return true;
-    } else {
-      return false;
+    } finally {
+      unlockWatches(this, w);
     }
   }
   
   /** Returns true iff this Active object is reporting to the given object */
   public final boolean hasWatcher(Active w) {
-    return watchers != null && watchers.contains(w);
+    return indexOf(watchers, w) >= 0;
   }
   
   /** Returns an array of all this object's watchers */
   public final Active[] allWatchers() {
-    return watchers == null
-        ? new Active[0]
-        : watchers.toArray(new Active[watchers.size()]);
+    return watchers.clone();
   }
   
   /** Returns the number of objects watching this one */
   public final int watcherCount() {
-    return watchers == null
-        ? 0
-        : watchers.size();
+    return watchers.length;
   }
   
   /**
@@ -473,14 +681,24 @@ public abstract class Active extends Container {
    *         the number of watchers this object had
    */
   public final int clearWatchers() {
-    if (watchers == null)
-      return 0;
-    int n = watchers.size();
-    for (Active w : watchers) {
-      w.watching.remove(this);
+    Active[] old;
+    watchLock.lock();
+    try {
+      old = watchers;
+      watchers = NO_ACTIVES;
+    } finally {
+      watchLock.unlock();
+    }
+    for (Active w : old) {
+      lockWatches(this, w);
+      try {
+        if (indexOf(watchers, w) < 0) // unless it was added back since
+          w.watching = without(w.watching, this);
+      } finally {
+        unlockWatches(this, w);
+      }
     }
-    watchers = null;
-    return n;
+    return old.length;
   }
   
   /**
@@ -501,21 +719,17 @@ public abstract class Active extends Container {
   
   /** Returns true iff this Active object is watching the given object */
   public final boolean isWatching(Active a) {
-    return watching != null && watching.contains(a);
+    return indexOf(watching, a) >= 0;
   }
   
   /** Returns an array of everything this object is currently watching */
   public final Active[] allWatching() {
-    return watching == null
-        ? new Active[0]
-        : watching.toArray(new Active[watching.size()]);
+    return watching.clone();
   }
   
   /** Returns the number of objects this object is watching */
   public final int watchingCount() {
-    return watching == null
-        ? 0
-        : watching.size();
+    return watching.length;
   }
   
   /**
@@ -525,14 +739,39 @@ public abstract class Active extends Container {
    *          the number of watches this object had
    */
   public final int clearWatching() {
-    if (watching == null)
-      return 0;
-    int n = watching.size();
-    for (Active w : watching) {
-      w.watchers.remove(this);
+    Active[] old;
+    watchLock.lock();
+    try {
+      old = watching;
+      watching = NO_ACTIVES;
+    } finally {
+      watchLock.unlock();
+    }
+    for (Active a : old) {
+      lockWatches(this, a);
+      try {
+        if (indexOf(watching, a) < 0) // unless it was added back since
+          a.watchers = without(a.watchers, this);
+      } finally {
+        unlockWatches(this, a);
+      }
     }
-    watching = null;
-    return n;
+    return old.length;
+  }
+  
+  /** Returns the value table, creating it if this object has none yet */
+  private ValueTable values() {
+    ValueTable v = values;
+    if (v == null) {
+      wordLock.lock();
+      try {
+        if ((v = values) == null)
+          values = v = new ValueTable(valueLayouts.get(getClass()));
+      } finally {
+        wordLock.unlock();
+      }
+    }
+    return v;
   }
   
   /**
@@ -540,10 +779,60 @@ public abstract class Active extends Container {
    * value is returned
    */
   public final Value getValue(String name) {
-    if (values == null)
-      return Value.make();
-    Value v = values.get(name);
-    return v == null ? Value.make() : v;
+    ValueTable v = values;
+    int key = valueNames.find(name);
+    return v == null || key < 0 ? Value.make() : v.get(key);
+  }
+  
+  /** Returns the value of the given name as an integer, without a Value */
+  public final long getInt(String name) {
+    ValueTable v = values;
+    int key = valueNames.find(name);
+    return v == null || key < 0 ? Value.DEFAULT_INT : v.getInt(key);
+  }
+  
+  /** Returns the value of the given name as a float, without a Value */
+  public final double getFloat(String name) {
+    ValueTable v = values;
+    int key = valueNames.find(name);
+    return v == null || key < 0 ? Value.DEFAULT_FLOAT : v.getFloat(key);
+  }
+  
+  /** Returns the value of the given name as a boolean, without a Value */
+  public final boolean getBoolean(String name) {
+    ValueTable v = values;
+    int key = valueNames.find(name);
+    return v == null || key < 0 ? Value.DEFAULT_BOOLEAN : v.getBoolean(key);
+  }
+  
+  /** Returns the type of the value of the given name */
+  public final Value.ValueType valueType(String name) {
+    ValueTable v = values;
+    int key = valueNames.find(name);
+    return v == null || key < 0 ? Value.ValueType.UNSET : v.type(key);
+  }
+  
+  /** Sets the value of the given name without making a Value */
+  public final void setInt(String name, long val) {
+    values().setInt(valueNames.intern(name), val);
+  }
+  
+  /** Sets the value of the given name without making a Value */
+  public final void setFloat(String name, double val) {
+    values().setFloat(valueNames.intern(name), val);
+  }
+  
+  /** Sets the value of the given name without making a Value */
+  public final void setBoolean(String name, boolean val) {
+    values().setBoolean(valueNames.intern(name), val);
+  }
+  
+  /**
+   * Adds [delta] to the integer value of the given name and returns the
+   * result. An unset value counts as 0.
+   */
+  public final long addInt(String name, long delta) {
+    return values().addInt(valueNames.intern(name), delta);
   }
   
   /**
@@ -551,10 +840,7 @@ public abstract class Active extends Container {
    * value, if it was set, otherwise returns an empty value
    */
   public final Value setValue(String name, String val) {
-    if (values == null)
-      values = new Hashtable<String, Value>();
-    Value x = values.put(name, Value.make(val));
-    return (x == null ? Value.make() : x);
+    return setValue(name, Value.make(val));
   }
   
   /**
@@ -562,10 +848,7 @@ public abstract class Active extends Container {
    * value, if it was set, otherwise returns an empty value
    */
   public final Value setValue(String name, long val) {
-    if (values == null)
-      values = new Hashtable<String, Value>();
-    Value x = values.put(name, Value.make(val));
-    return (x == null ? Value.make() : x);
+    return values().swapInt(valueNames.intern(name), val);
   }
   
   /**
@@ -573,10 +856,7 @@ public abstract class Active extends Container {
    * value, if it was set, otherwise returns an empty value
    */
   public final Value setValue(String name, double val) {
-    if (values == null)
-      values = new Hashtable<String, Value>();
-    Value x = values.put(name, Value.make(val));
-    return (x == null ? Value.make() : x);
+    return values().swapFloat(valueNames.intern(name), val);
   }
   
   /**
@@ -584,10 +864,7 @@ public abstract class Active extends Container {
    * value, if it was set, otherwise returns an empty value
    */
   public final Value setValue(String name, boolean val) {
-    if (values == null)
-      values = new Hashtable<String, Value>();
-    Value x = values.put(name, Value.make(val));
-    return (x == null ? Value.make() : x);
+    return values().swapBoolean(valueNames.intern(name), val);
   }
   
   /**
@@ -595,19 +872,16 @@ public abstract class Active extends Container {
    * value, if it was set, otherwise returns an empty value
    */
   public final Value setValue(String name, Value val) {
-    if (val == null || val.isUnset()) {
+    if (val == null || val.isUnset())
       return deleteValue(name);
-    } else {
-      if (values == null)
-        values = new Hashtable<String, Value>();
-      Value x = values.put(name, val);
-      return (x == null ? Value.make() : x);
-    }
+    return values().swap(valueNames.intern(name), val);
   }
   
   /** Returns true if and only if the value of the given name is set */
   public final boolean hasValue(String name) {
-    return values != null && values.containsKey(name);
+    ValueTable v = values;
+    int key = valueNames.find(name);
+    return v != null && key >= 0 && v.contains(key);
   }
   
   /**
@@ -615,9 +889,8 @@ public abstract class Active extends Container {
    * it was set, otherwise returns an empty value
    */
   public final Value deleteValue(String name) {
-    if (values == null)
-      return Value.make();
-    Value x = values.remove(name);
-    return (x == null ? Value.make() : x);
+    ValueTable v = values;
+    int key = valueNames.find(name);
+    return v == null || key < 0 ? Value.make() : v.swap(key, null);
   }
 }
\ No newline at end of file
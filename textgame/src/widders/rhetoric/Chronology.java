@@ -2,82 +2,216 @@ package widders.rhetoric;
 
 import static widders.rhetoric.Units.*;
 
-import java.util.Date;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+
+import widders.util.Cancellable;
+import widders.util.TimingWheel;
 
 
 /**
  * Provides the ability to schedule an action on an object.
  * 
+ * Scheduled actions are kept in a timing wheel, turned by a single timer
+ * thread once per tick. Everything that comes due in a tick is handed to
+ * Tasking as a batch.
+ * 
+ * Game time comes from a GameClock, the wall clock by default. Under a
+ * stepped clock the timer leaves the wheel alone, and advance() runs the
+ * actions instead, one tick at a time.
+ * 
  * @author widders
  */
 public final class Chronology extends Active {
-  private ScheduledExecutorService scheduler;
+  /** The source of game time */
+  private static volatile GameClock clock = GameClock.wall();
+  
+  private final TimingWheel<Runnable> wheel;
+  private final Thread timer;
+  /** The timer waits on this when the wheel is empty */
+  private final Object timerLock = new Object();
+  /** Set while the timer is waiting for something to be scheduled */
+  private volatile boolean idle = false;
+  private volatile boolean stopped = false;
+  /** Held while advancing a stepped clock */
+  private final Object stepLock = new Object();
+  
+  /** A scheduled target() or use() */
+  private static final class Event implements Runnable {
+    final Active actor, target, indirect;
+    final String verb;
+    final Selection selection;
+    final Report report;
+    
+    Event(Active actor, String verb, Active target, Active indirect,
+          Selection selection, Report report) {
+      this.actor = actor;
+      this.verb = verb;
+      this.target = target;
+      this.indirect = indirect;
+      this.selection = selection;
+      this.report = report;
+    }
+    
+    @Override
+    public void run() {
+      if (selection != null)
+        indirect.use(actor, verb, selection, report);
+      else
+        target.target(actor, verb, report);
+    }
+  }
   
   /**
    * Creates a new instance of Chronology
+   * 
+   * @param tickMs
+   *          the resolution of scheduled actions in milliseconds
    */
-  public Chronology(Container putItHere, String preposition, int threadCount) {
+  public Chronology(Container putItHere, String preposition, long tickMs) {
     super(new BasicName("chronology"),
           array("chronology", "hourglass", "huge"),
           putItHere, preposition);
     classify("engine_object", "immortal");
     
-    scheduler = Executors.newScheduledThreadPool(threadCount);
+    wheel = new TimingWheel<Runnable>(tickMs, now());
+    timer = new Thread(this::turn, "Chronology");
+    timer.setDaemon(true);
+    timer.start();
   }
   
   /** Returns the current game time in millis UTC */
   public static long now() {
-    return new Date().getTime();
+    return clock.now();
   }
   
+  public static GameClock clock() {
+    return clock;
+  }
   
+  /**
+   * Switches the source of game time. The new clock must carry on from the
+   * current game time, since game time cannot go backwards.
+   */
+  public static void setClock(GameClock newClock) {
+    if (newClock.now() < now())
+      throw new IllegalArgumentException("Time cannot run backwards");
+    clock = newClock;
+  }
   
+  /** The timer thread: expires due actions once per tick */
+  private void turn() {
+    ArrayList<Runnable> due = new ArrayList<Runnable>();
+    long tick = wheel.tickLength();
+    while (!stopped) {
+      GameClock c = clock;
+      long wait = tick; // in real time: recheck the clock at least this often
+      if (!(c instanceof GameClock.Stepped)) {
+        synchronized (stepLock) {
+          wheel.expire(c.now(), due);
+        }
+        for (Runnable task : due)
+          Tasking.queue(task);
+        due.clear();
+        long next = Math.min(tick, wheel.nextTime() - c.now());
+        wait = Math.min(tick, c.realDelay(next));
+      }
+      
+      try {
+        synchronized (timerLock) {
+          // set idle before looking, so schedule() either sees it or is seen
+          idle = true;
+          if (wheel.size() == 0) {
+            while (idle && !stopped)
+              timerLock.wait();
+          } else {
+            idle = false;
+            timerLock.wait(Math.max(1, wait));
+          }
+          idle = false;
+        }
+      } catch (InterruptedException ex) {
+        break;
+      }
+    }
+  }
+  
+  private Cancellable schedule(long delayMs, Runnable task) {
+    Cancellable c = wheel.add(task, now() + delayMs);
+    if (idle) {
+      synchronized (timerLock) {
+        idle = false;
+        timerLock.notify();
+      }
+    }
+    return c;
+  }
+  
+  /** Number of scheduled actions that have not come due */
+  public int scheduledCount() {
+    return wheel.size();
+  }
   
-  ///// TODO implement task queueing
-  public ScheduledFuture<?> scheduleTask(long delayMs, Runnable task) {
-    return scheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+  public Cancellable scheduleTask(long delayMs, Runnable task) {
+    return schedule(delayMs, task);
   }
 
-  public ScheduledFuture<?> scheduleTask(long delayMs, final Active actor,
-                                     final String verb,
-                                     final Active target, final Report report) {
-    return scheduler.schedule(
-                              new Runnable() {
-                                Active a = actor, t = target;
-                                String v = verb;
-                                Report r = report;
-                                
-                                public void run() {
-                                  t.target(a, v, r);
-                                }
-                              },
-                              delayMs, TimeUnit.MILLISECONDS);
-  }
-  
-  public ScheduledFuture<?> addEvent(long delayMs, final Active actor,
-                                  final String verb,
-                                  final Active indirect, final Selection target,
-                                  final Report report) {
-    return scheduler.schedule(
-                              new Runnable() {
-                                Active a = actor, i = indirect;
-                                Selection t = target;
-                                String v = verb;
-                                Report r = report;
-                                
-                                public void run() {
-                                  i.use(a, v, t, r);
-                                }
-                              },
-                              delayMs, TimeUnit.MILLISECONDS);
+  public Cancellable scheduleTask(long delayMs, Active actor, String verb,
+                                  Active target, Report report) {
+    return schedule(delayMs,
+                    new Event(actor, verb, target, null, null, report));
   }
   
+  public Cancellable addEvent(long delayMs, Active actor, String verb,
+                              Active indirect, Selection target,
+                              Report report) {
+    return schedule(delayMs,
+                    new Event(actor, verb, null, indirect, target, report));
+  }
+  
+  /**
+   * Moves a stepped clock forward by ms, running the actions that come due on
+   * the calling thread, in the order they come due. While an action runs the
+   * clock reads the time of the tick it came due in, and actions it schedules
+   * within the time are run too. Callbacks the actions cause still go through
+   * Tasking.
+   * 
+   * @return
+   *         the number of actions run
+   * @throws IllegalStateException
+   *           if the game clock is not a stepped clock
+   */
+  public int advance(long ms) {
+    GameClock c = clock;
+    if (!(c instanceof GameClock.Stepped))
+      throw new IllegalStateException("The game clock is not stepped");
+    GameClock.Stepped stepped = (GameClock.Stepped)c;
+    ArrayList<Runnable> due = new ArrayList<Runnable>();
+    int count = 0;
+    synchronized (stepLock) {
+      long target = stepped.now() + ms;
+      while (wheel.expireNext(target, due) > 0) {
+        stepped.set(Math.max(stepped.now(), wheel.currentTime()));
+        for (Runnable task : due) {
+          try {
+            task.run();
+          } catch (Throwable ex) {
+            ex.printStackTrace();
+          }
+        }
+        count += due.size();
+        due.clear();
+      }
+      stepped.set(target);
+    }
+    return count;
+  }
+  
+  /** Stops the timer. Actions that have not come due are dropped. */
   public void shutDownScheduler() {
-    scheduler.shutdown();
+    synchronized (timerLock) {
+      stopped = true;
+      timerLock.notify();
+    }
   }
   
   
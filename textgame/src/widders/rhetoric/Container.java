@@ -1,15 +1,23 @@
 package widders.rhetoric;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import widders.util.IntentionLock;
+import widders.util.IntentionLock.Mode;
 import widders.util.IterProtector;
 import widders.util.RandomAccessLinkedHashSet;
 import widders.util.SimpleStack;
@@ -35,10 +43,8 @@ public abstract class Container implements Named, Iterable<Active> {
   // container() RETURNS AN Active, OR NULL IF THE CONTAINER IS ACTUALLY A Room
   // room() RETURNS THE ROOM THE OBJECT IS ULTIMATELY IN
   
-  /* The internal static registry of live Active objects, mapped by internal
-   * name */
-  private static Map<String, Container> registry =
-      new Hashtable<String, Container>();
+  /* The internal static registry of live Active objects, mapped by iD */
+  private static final Registry registry = new Registry();
   
   /* This object's name */
   private Name name;
@@ -54,13 +60,38 @@ public abstract class Container implements Named, Iterable<Active> {
   /** Lock to enforce synchronicity on content stats tracking */
   private final ReentrantLock statSynchro = new ReentrantLock();
   
-  /** Lock to allow collapsing propagation */
-  private final ReentrantLock propagationSynchro = new ReentrantLock();
-  private Stats lastReportedStats;
-  private Stats newStats = null;
+  /** The stats last added to this object's container's content stats.
+   * Synchronized to the container's statSynchro. */
+  private volatile Stats lastReportedStats;
   
   /* Synchronized to this container's synchro */
   private ContentStats contentStats = new ContentStats();
+  /** Immutable copy of contentStats, replaced whenever they change. Read
+   * without locking. */
+  private volatile Stats contentSnapshot = new Stats(0d, 0d, 0d, 0d);
+  /** Contents a transaction on the current thread is about to add, by
+   * destination, while it authorizes its moves; otherwise null */
+  private static final ThreadLocal<IdentityHashMap<Container, Stats>> projections =
+      new ThreadLocal<IdentityHashMap<Container, Stats>>();
+  /** The number of threads with projections, so that the content stats need
+   * not look for one otherwise */
+  private static final AtomicInteger projecting = new AtomicInteger();
+  
+  /** Whether stats changes are collected and propagated once per epoch
+   * instead of as they happen; see batchStats() */
+  private static volatile boolean statsBatching = false;
+  /** Containers whose stats may have changed since the last flush */
+  private static final ConcurrentLinkedQueue<Container> dirtyStats =
+      new ConcurrentLinkedQueue<Container>();
+  /** Guards statsBatching changes and statsFlusher */
+  private static final Object statsBatchingLock = new Object();
+  /** The thread flushing dirtyStats once per epoch while stats are batched,
+   * or null */
+  private static Thread statsFlusher = null;
+  /** 1 while this container is in dirtyStats */
+  private volatile int statsDirty = 0;
+  private static final AtomicIntegerFieldUpdater<Container> STATS_DIRTY =
+      AtomicIntegerFieldUpdater.newUpdater(Container.class, "statsDirty");
   
   /** Lock to ensure that only one process is moving this object at a time. */
   private final ReentrantLock moveSynchro = new ReentrantLock();
@@ -74,6 +105,18 @@ public abstract class Container implements Named, Iterable<Active> {
   private Reservation currentReservation = null;
   /** When this is 0 the object is ok to move, -1 when an object is currently moving */
   private int moveFreeze = 0;
+  /** Version stamp of the container link, bumped as the movement phase begins
+   * and ends; odd while the object is in its movement phase, when its link
+   * may change. Read without locking to validate optimistic moves. */
+  private volatile int linkVersion = 0;
+  /** Multi-granularity lock over this container and everything inside it;
+   * see lockTree() and lockTreeForMove() */
+  private final IntentionLock treeLock = new IntentionLock();
+  /** The number of lockTree() calls the current thread is inside of */
+  private static final ThreadLocal<int[]> treeReads =
+      ThreadLocal.withInitial(() -> new int[1]);
+  /** Optimistic moves given up on because of a concurrent move */
+  private static final AtomicInteger optimisticConflicts = new AtomicInteger();
   
   /** The object containing this container */
   private Container container;
@@ -113,8 +156,8 @@ public abstract class Container implements Named, Iterable<Active> {
   
   /** The total number of tasks queued for Containers */
   private static final AtomicInteger totalTaskCount = new AtomicInteger();
-  /** The task queue for this specific container */
-  private final ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<Runnable>();
+  /** The task lane for this specific container */
+  private final Tasking.Lane taskLane = new Tasking.Lane();
   
   
   /** Represents the dimensional statistics of an object */
@@ -364,6 +407,9 @@ public abstract class Container implements Named, Iterable<Active> {
         }
       }
       
+      // publish a fresh copy for lock-free readers
+      if (changed)
+        contentSnapshot = new Stats(this);
       return changed;
     }
   }
@@ -391,7 +437,7 @@ public abstract class Container implements Named, Iterable<Active> {
         : preposition.intern();
     this.name = name;
     internalName = name + "_" + iD;
-    registry.put(internalName, this);
+    registry.register(this);
   }
   
   /**
@@ -416,7 +462,7 @@ public abstract class Container implements Named, Iterable<Active> {
       // failed to emplace; doom this object
       Container originalTarget = container;
       container = null;
-      registry.remove(internalName);
+      registry.unregister(this);
       dateDoomed = System.currentTimeMillis();
       Main.log("creation", "Could not init " + this + " in "
           + originalTarget + " : " + r.text());
@@ -443,9 +489,12 @@ public abstract class Container implements Named, Iterable<Active> {
       return false;
     
     ((Container)obj).beginMovement(null);
+    lockTreeForMove(obj, null, this);
     boolean update = enactAdd(obj, preposition);
+    unlockTreeForMove(obj, null, this);
     ((Container)obj).endMovement();
     if (update) updateStats();
+    reindexDeep(obj);
     
     r.report(obj + " was placed '" + preposition + "' " + this);
     
@@ -473,6 +522,19 @@ public abstract class Container implements Named, Iterable<Active> {
     return registry.get(name);
   }
   
+  /**
+   * Retrieves a Container by its iD. If there is no existing object with the
+   * given iD, null is returned
+   */
+  public static final Container getByID(long iD) {
+    return registry.get(iD);
+  }
+  
+  /** The number of objects in the registry */
+  public static int registeredCount() {
+    return registry.size();
+  }
+  
   /**
    * @return
    *         this object's unique ID
@@ -500,10 +562,16 @@ public abstract class Container implements Named, Iterable<Active> {
     r.report(des(detail));
   }
   
-  /** Appends descriptions of this items' contents. */
+  /** Appends descriptions of this items' contents. Nothing is moved into,
+   * out of or around inside this while they are read. */
   public final StringBuilder readContents(StringBuilder sb, Detail detail) {
-    for (Active content : this)
-      sb.append('\n').append(content.des(detail));
+    lockTree();
+    try {
+      for (Active content : this)
+        sb.append('\n').append(content.des(detail));
+    } finally {
+      unlockTree();
+    }
     return sb;
   }
   
@@ -533,15 +601,153 @@ public abstract class Container implements Named, Iterable<Active> {
         : contents.size();
   }
   
-  /** Returns the number of items contained recursively */
-  ///// TODO there should probably be a safer way to do this
+  /** Returns the number of items contained recursively, as of a single
+   * moment */
   public final int contentCountDeep() {
+    lockTree();
+    try {
+      return countDeep();
+    } finally {
+      unlockTree();
+    }
+    //return contentCountDeep.get();
+  }
+  
+  private int countDeep() {
     Active[] list = allContents();
     int t = list.length;
     for (Active content : list)
-      t += content.contentCountDeep();
+      t += ((Container)content).countDeep();
     return t;
-    //return contentCountDeep.get();
+  }
+  
+  /**
+   * Locks everything inside this container against being moved in, out or
+   * around until unlockTree() is called: S on this container and IS on each
+   * one outside it, so that it stays where it is as well. Moves wait for the
+   * lock to be released, so it must not be held while moving anything;
+   * reading several subtrees at once is fine.
+   * 
+   * A thread's outermost call waits for moves that are already waiting, so
+   * that readers can't keep them out; calls made while it holds the lock
+   * don't, or they might wait on a move that is waiting on them.
+   */
+  final void lockTree() {
+    if (treeReads.get()[0]++ == 0)
+      treeLock.lockBehindWriters(Mode.S);
+    else
+      treeLock.lock(Mode.S);
+    // each container's place is fixed once it is locked, so the chain read
+    // on the way up is the chain that gets unlocked
+    for (Container c = container; c != null; c = c.container)
+      c.treeLock.lock(Mode.IS);
+  }
+  
+  final void unlockTree() {
+    // each link is read before its container is let go, after which it may
+    // move
+    Container c = container;
+    treeLock.unlock(Mode.S);
+    while (c != null) {
+      Container next = c.container;
+      c.treeLock.unlock(Mode.IS);
+      c = next;
+    }
+    treeReads.get()[0]--;
+  }
+  
+  /**
+   * Takes the tree locks for moving obj out of [from] and into [to], either
+   * of which may be null: X on obj, and IX on [from], [to] and everything
+   * outside them, once each for the containers they share. Locks are only
+   * tried while others are held; if one is
+   * busy, all are let go and that one is waited for before starting over,
+   * so a move never waits while holding tree locks.
+   */
+  private static void lockTreeForMove(Container obj, Container from,
+                                      Container to) {
+    Container busy = tryLockTreeForMove(obj, from, to);
+    while (busy != null) {
+      if (busy == obj) {
+        obj.treeLock.lock(Mode.X);
+        obj.treeLock.unlock(Mode.X);
+        busy = tryLockTreeForMove(obj, from, to);
+      } else {
+        // keep the lock waited for while trying the rest, so readers that
+        // come along meanwhile can't take it back first; IX is compatible
+        // with itself, so trying it again succeeds
+        Container held = busy;
+        held.treeLock.lock(Mode.IX);
+        busy = tryLockTreeForMove(obj, from, to);
+        held.treeLock.unlock(Mode.IX);
+      }
+    }
+  }
+  
+  /** Returns null on success, or the container whose lock was busy */
+  private static Container tryLockTreeForMove(Container obj, Container from,
+                                              Container to) {
+    if (!obj.treeLock.tryLock(Mode.X))
+      return obj;
+    Container busy = tryLockChain(from, null);
+    if (busy == null) {
+      busy = tryLockChain(to, from);
+      if (busy == null)
+        return null;
+      unlockChain(from);
+    }
+    obj.treeLock.unlock(Mode.X);
+    return busy;
+  }
+  
+  private static void unlockTreeForMove(Container obj, Container from,
+                                        Container to) {
+    unlockChain(to, meeting(to, from));
+    unlockChain(from);
+    obj.treeLock.unlock(Mode.X);
+  }
+  
+  /**
+   * Tries to take IX on c and everything outside it, stopping at the first
+   * that is [held] or contains it, as those are locked already. On failure
+   * lets go of what was taken and returns the container that was busy.
+   */
+  private static Container tryLockChain(Container c, Container held) {
+    for (Container x = c; x != null; x = x.container) {
+      // a container that holds [held] is locked, so can't move into or out
+      // of the chain while we look
+      if (held != null && (x == held || x.containsDeep(held)))
+        return null;
+      if (!x.treeLock.tryLock(Mode.IX)) {
+        unlockChain(c, x);
+        return x;
+      }
+    }
+    return null;
+  }
+  
+  private static void unlockChain(Container c) {
+    unlockChain(c, null);
+  }
+  
+  /** Returns the first of c and the containers outside it that is [held] or
+   * contains it, or null */
+  private static Container meeting(Container c, Container held) {
+    if (held != null)
+      for (Container x = c; x != null; x = x.container)
+        if (x == held || x.containsDeep(held))
+          return x;
+    return null;
+  }
+  
+  /** Lets go of IX on c and everything outside it up to [end] */
+  private static void unlockChain(Container c, Container end) {
+    // read each link before letting go, after which the container may move
+    while (c != end) {
+      Container next = c.container;
+      c.treeLock.unlock(Mode.IX);
+      c = next;
+    }
   }
   
   public final Container container() {
@@ -598,11 +804,19 @@ public abstract class Container implements Named, Iterable<Active> {
    * two.
    */
   public final Container commonContainer(Container obj) {
-    for (Container possible = this; possible != null; possible = possible.container) {
-      if (possible == obj || possible.containsDeep(obj))
-        return possible;
+    // bring the deeper of the two up level with the other, then climb
+    // together; either may be moving, so the chains may run out early
+    Container a = this, b = obj;
+    int da = a.depth(), db = b.depth();
+    for (; da > db && a != null; da--)
+      a = a.container;
+    for (; db > da && b != null; db--)
+      b = b.container;
+    while (a != b && a != null && b != null) {
+      a = a.container;
+      b = b.container;
     }
-    return null;
+    return a == b ? a : null;
   }
   
   /**
@@ -642,221 +856,276 @@ public abstract class Container implements Named, Iterable<Active> {
   
   /** Updates this object's size, weight, etc. */
   protected final void updateStats() {
-    if (!initialized || doomed)
+    if (statsBatching)
+      markStatsDirty();
+    else
+      updateStatsBelow(null);
+  }
+  
+  /**
+   * Switches batched stats on or off. While they are on, a change to an
+   * object's stats is not propagated to its containers straight away; the
+   * object is marked dirty, and everything marked in an epoch of
+   * Main.STATS_EPOCH_MS is propagated together by flushStats(), merging the
+   * changes to the containers they share so that each reports once per epoch
+   * instead of once per change. The flushes are made by a thread of their
+   * own, so they do not wait on Tasking or the game clock.
+   * 
+   * A container's own content stats still change as soon as something is
+   * added to or removed from it, so what fits in it directly is always
+   * current; only changes to the things inside it are late to arrive.
+   * Switching batching off flushes what is pending.
+   */
+  public static void batchStats(boolean on) {
+    synchronized (statsBatchingLock) {
+      statsBatching = on;
+      if (on && statsFlusher == null) {
+        statsFlusher = new Thread(Container::flushEpochs, "Stats flush");
+        statsFlusher.setDaemon(true);
+        statsFlusher.start();
+      }
+    }
+    if (!on)
+      flushStats();
+  }
+  
+  /** The stats flushing thread: flushes once per epoch until batching ends */
+  private static void flushEpochs() {
+    while (true) {
+      try {
+        Thread.sleep(Main.STATS_EPOCH_MS);
+      } catch (InterruptedException ex) {
+        // flush early
+      }
+      boolean last; // batching has ended; flush once more for late marks
+      synchronized (statsBatchingLock) {
+        last = !statsBatching;
+        if (last)
+          statsFlusher = null;
+      }
+      try {
+        flushStats();
+      } catch (Throwable ex) {
+        ex.printStackTrace();
+      }
+      if (last)
+        return;
+    }
+  }
+  
+  /** Whether stats are batched; see batchStats() */
+  public static boolean statsBatched() {
+    return statsBatching;
+  }
+  
+  /**
+   * Propagates the stats of every object marked dirty, deepest first. Called
+   * once per epoch while stats are batched, but can be called at any time to
+   * bring them up to date.
+   */
+  public static void flushStats() {
+    ArrayList<Container> dirty = new ArrayList<Container>();
+    Container c;
+    while ((c = dirtyStats.poll()) != null) {
+      STATS_DIRTY.set(c, 0);
+      dirty.add(c);
+    }
+    if (!dirty.isEmpty())
+      propagateStats(dirty);
+  }
+  
+  /** Marks this object's stats to be propagated at the end of the epoch */
+  private void markStatsDirty() {
+    if (!initialized || doomed || !STATS_DIRTY.compareAndSet(this, 0, 1))
+      return;
+    dirtyStats.add(this);
+    // batching may have ended, and its last flush been made, since the
+    // caller looked
+    if (!statsBatching)
+      flushStats();
+  }
+  
+  /** Updates this object's stats and its containers' up to but not including
+   * [stop], or all the way if it is not one of them */
+  private void updateStatsBelow(Container stop) {
+    if (!initialized || doomed || this == stop)
       return;
     
-    Stats sendStats;
-    
-    freezeMovement();
-//    Main.log("concurrency", Thread.currentThread().getName() + " acquiring statSynchro of " + this);
-    statSynchro.lock();
-    try {
-      // update this object's lastreported stats
-      propagationSynchro.lock();
+    /* walk up hand over hand, keeping each object frozen so it stays in the
+     * container it is reporting to */
+    Container c = this;
+    c.freezeMovement();
+    while (c != null) {
+      Container next;
       try {
-        boolean firstIn = false;
-        if (newStats == null)
-          firstIn = true;
-        
-        newStats = new Stats(this);
-        // if local stats didn't change, exit
-        if (newStats.equals(lastReportedStats)) {
-          newStats = null;
-          unfreezeMovement();
-          return;
-        }
-        
-        // someone else is already waiting to continue propagation
-        if (!firstIn) {
-//          Main.log("concurrency", Thread.currentThread().getName() + " collapsing propagation at " + this);
-          unfreezeMovement();
-          return;
-        }
+        next = c.reportStats();
+        if (next == stop)
+          next = null;
+        else if (next != null)
+          next.freezeMovement();
       } finally {
-        propagationSynchro.unlock();
+        c.unfreezeMovement();
       }
-      
-    } finally {
-      // release stat lock
-//      Main.log("concurrency", Thread.currentThread().getName() + " releasing statSynchro of " + this);
-      statSynchro.unlock();
+      c = next;
     }
-    
-    // obtain stat lock of next container up
-    container.freezeMovement();
-//    Main.log("concurrency", Thread.currentThread().getName() + " acquiring statSynchro of " + container);
-    container.statSynchro.lock();
-    
-    propagationSynchro.lock();
-    try {
-      // if we aren't changing stats after all...
-      if (newStats == null) {
-        // unlock everything and finish
-        container.statSynchro.unlock();
-        container.unfreezeMovement();
-        unfreezeMovement();
-        return;
-      }
-      
-      // update lastreported stats under this lock
-      sendStats = lastReportedStats.getChange(newStats);
-      lastReportedStats = newStats;
-      newStats = null;
-    } finally {
-      propagationSynchro.unlock();
+  }
+  
+  /**
+   * Updates the stats of two objects whose changes may cancel out, as those
+   * of a move's source and destination do. Each reports up to just below
+   * their innermost common container, which then reports once, so where the
+   * changes cancel nothing above it hears of them.
+   */
+  private static void updateStats(Container a, Container b) {
+    if (statsBatching) {
+      a.markStatsDirty();
+      b.markStatsDirty();
+      return;
     }
-    
-    /* at this point we hold statSynchro locks only on the container, and this
-     * object is move-frozen */
-    
-    // propagate upwards
-    container.propagateStats(sendStats, this);
+    Container common = a.commonContainer(b);
+    a.updateStatsBelow(common);
+    b.updateStatsBelow(common);
+    if (common != null)
+      common.updateStats();
   }
   
-  /** Changes content stats, updates local stats, and immediately propagates.
-   * 
-   * The lock on this object's statSynchro must be held when this method is called,
-   * and will be released before return. This object must also be move-frozen,
-   * and will be unfrozen on return.
-   * 
-   * propagatingFrom must be move-frozen or null; if it is non-null, it will be
-   * unfrozen once. */
-  private void propagateStats(Stats change, Container propagatingFrom) {
-    Stats sendStats;
+  /**
+   * Updates the stats of several objects at once. Objects are reported deepest
+   * first, so any container they share merges their changes and propagates
+   * upward only once instead of once per object.
+   */
+  private static void updateStats(Collection<Container> dirty) {
+    if (statsBatching) {
+      for (Container c : dirty)
+        c.markStatsDirty();
+      return;
+    }
+    propagateStats(dirty);
+  }
+  
+  /** Does the work of updateStats(Collection) and flushStats() */
+  private static void propagateStats(Collection<Container> dirty) {
+    // containers waiting to report, by depth
+    ArrayList<ArrayList<Container>> levels = new ArrayList<ArrayList<Container>>();
+    Set<Container> queued =
+        Collections.newSetFromMap(new IdentityHashMap<Container, Boolean>());
     
-    /* on entry to this method, propagatingFrom is either null or move-frozen and
-     * the lock to this object's statSynchro is already held */
-    try {
-      // modify content stats from parameters
-      boolean contentChanged = contentStats.modify(change);
-          //changeContentStats(change);
-      
-      // unfreeze content's movement if there was one
-      if (propagatingFrom != null)
-        propagatingFrom.unfreezeMovement();
-      
-      // if contents did not change, exit (releasing stat lock and unfreezing)
-      if (!contentChanged) {
-        unfreezeMovement();
-        return;
-      }
-      
-      // if this is a room, exit (releasing stat lock and unfreezing)
-      if (container == null) {
-        unfreezeMovement();
-        return;
-      }
-      
-      // update this object's lastreported stats
-      propagationSynchro.lock();
-      try {
-        boolean firstIn = false;
-        if (newStats == null)
-          firstIn = true;
+    for (Container c : dirty) {
+      if (c.initialized && !c.doomed && queued.add(c))
+        level(levels, c.depth()).add(c);
+    }
+    
+    for (int depth = levels.size() - 1; depth >= 0; depth--) {
+      ArrayList<Container> level = levels.get(depth);
+      // parents of depth 0 objects (if depths changed underfoot) are appended
+      for (int i = 0; i < level.size(); i++) {
+        Container c = level.get(i);
+        queued.remove(c);
         
-        newStats = new Stats(this);
-        // if local stats didn't change, exit
-        if (newStats.equals(lastReportedStats)) {
-          newStats = null;
-          unfreezeMovement();
-          return;
+        Container parent;
+        c.freezeMovement();
+        try {
+          parent = c.reportStats();
+        } finally {
+          c.unfreezeMovement();
         }
         
-        // someone else is already waiting to continue propagation
-        if (!firstIn) {
-//          Main.log("concurrency", Thread.currentThread().getName() + " collapsing propagation at " + this);
-          unfreezeMovement();
-          return;
-        }
-      } finally {
-        propagationSynchro.unlock();
+        if (parent != null && queued.add(parent))
+          level(levels, Math.max(depth - 1, 0)).add(parent);
       }
-      
-    } finally {
-      // release stat lock
-//      Main.log("concurrency", Thread.currentThread().getName() + " releasing statSynchro of " + this);
-      statSynchro.unlock();
     }
+  }
+  
+  /** Returns the list of containers at the given depth, adding levels as needed */
+  private static ArrayList<Container> level(ArrayList<ArrayList<Container>> levels,
+                                            int depth) {
+    while (levels.size() <= depth)
+      levels.add(new ArrayList<Container>());
+    return levels.get(depth);
+  }
+  
+  /** Returns the number of containers above this one */
+  private int depth() {
+    int depth = 0;
+    for (Container c = container; c != null; c = c.container)
+      depth++;
+    return depth;
+  }
+  
+  /**
+   * Recomputes this object's stats and applies any change to its container's
+   * content stats, without propagating further.
+   * 
+   * This object must be move-frozen when this is called.
+   * 
+   * @return
+   *         this object's container if its content stats changed and it is not
+   *         a room, meaning it must report its own stats in turn; otherwise null
+   */
+  private Container reportStats() {
+    Container parent = container;
+    if (parent == null)
+      return null;
     
-    // obtain stat lock of next container up to enforce ordering
-    container.freezeMovement();
-//    Main.log("concurrency", Thread.currentThread().getName() + " acquiring statSynchro of " + container);
-    container.statSynchro.lock();
-    
-    propagationSynchro.lock();
+    /* computing the new stats under the container's lock means that whoever
+     * reports last reports the newest stats */
+    parent.statSynchro.lock();
     try {
-      // if we aren't changing stats after all...
-      if (newStats == null) {
-        // unlock everything and finish
-        container.statSynchro.unlock();
-        container.unfreezeMovement();
-        unfreezeMovement();
-        return;
-      }
+      Stats fresh = new Stats(this);
+      if (fresh.equals(lastReportedStats))
+        return null;
       
-      // update lastreported stats under this lock
-      sendStats = lastReportedStats.getChange(newStats);
-      lastReportedStats = newStats;
-      newStats = null;
+      Stats change = lastReportedStats.getChange(fresh);
+      lastReportedStats = fresh;
+      return parent.contentStats.modify(change) && parent.container != null
+          ? parent
+          : null;
     } finally {
-      propagationSynchro.unlock();
+      parent.statSynchro.unlock();
     }
-    
-    /* at this point we hold statSynchro locks only on the container, and this
-     * object is move-frozen */
-    
-    // propagate upwards
-    container.propagateStats(sendStats, this);
   }
   
   /** Returns the total size of the contents */
   public final double contentSize() {
-    statSynchro.lock();
-    try {
-      return contentStats.size;
-    } finally {
-      statSynchro.unlock();
-    }
+    Stats p = projection();
+    return p == null ? contentSnapshot.size : contentSnapshot.size + p.size;
   }
   
   /** Returns the total weight of the contents */
   public final double contentWeight() {
-    statSynchro.lock();
-    try {
-      return contentStats.weight;
-    } finally {
-      statSynchro.unlock();
-    }
+    Stats p = projection();
+    return p == null ? contentSnapshot.weight : contentSnapshot.weight + p.weight;
   }
   
   /** Returns the length of the longest contained item */
   public final double longestContent() {
-    statSynchro.lock(); ///// TODO implement copy-on-write for contentstats so we don't need to lock this shit
-    try {
-      return contentStats.length;
-    } finally {
-      statSynchro.unlock();
-    }
+    Stats p = projection();
+    return p == null ? contentSnapshot.length
+        : Math.max(contentSnapshot.length, p.length);
   }
   
   /** Returns the width of the widest contained item */
   public final double widestContent() {
-    statSynchro.lock();
-    try {
-      return contentStats.width;
-    } finally {
-      statSynchro.unlock();
-    }
+    Stats p = projection();
+    return p == null ? contentSnapshot.width
+        : Math.max(contentSnapshot.width, p.width);
+  }
+  
+  /**
+   * Returns what a transaction on the current thread has authorized adding
+   * to this container but not yet added, or null
+   */
+  private Stats projection() {
+    if (projecting.get() == 0)
+      return null;
+    IdentityHashMap<Container, Stats> p = projections.get();
+    return p == null ? null : p.get(this);
   }
   
-  /** Returns the collective stats of this object's contents */
+  /** Returns the collective stats of this object's contents. The returned
+   * Stats are immutable and will not change when the contents do. */
   public final Stats contentStats() {
-    statSynchro.lock();
-    try {
-      return new Stats(contentStats);
-    } finally {
-      statSynchro.unlock();
-    }
+    return contentSnapshot;
   }
   
   /**
@@ -1000,6 +1269,7 @@ public abstract class Container implements Named, Iterable<Active> {
 //      Main.log("concurrency", Thread.currentThread().getName() + " beginning movement for " + this);
       moveFreeze = -1; // set object to locked state
       currentReservation = res;
+      linkVersion++;
     } catch (InterruptedException e) {
       throw new Error("Interrupted obtaining movement lock");
     } finally {
@@ -1007,6 +1277,23 @@ public abstract class Container implements Named, Iterable<Active> {
     }
   }
   
+  /** Begins the object's movement phase as beginMovement() does, but only if it
+   * can do so without waiting. Returns true on success. */
+  private boolean tryBeginMovement(Reservation res) {
+    moveSynchro.lock();
+    try {
+      if (moveFreeze != 0)
+        return false;
+      
+      moveFreeze = -1; // set object to locked state
+      currentReservation = res;
+      linkVersion++;
+      return true;
+    } finally {
+      moveSynchro.unlock();
+    }
+  }
+  
   /** Releases the lock on the object and allows it to be frozen in place again */
   private void endMovement() {
     moveSynchro.lock();
@@ -1018,6 +1305,7 @@ public abstract class Container implements Named, Iterable<Active> {
       
       moveFreeze = 0;
       currentReservation = null;
+      linkVersion++;
       
 //      Main.log("concurrency", Thread.currentThread().getName() + " ending movement for " + this);
       
@@ -1053,8 +1341,14 @@ public abstract class Container implements Named, Iterable<Active> {
   /** Provides functionality for obtaining locks for movement of objects
    * from one place to another */
   private static class Reservation {
-    private final Container moving;
+    /** The objects in their movement phase under this reservation; the first
+     * movingCount are valid */
+    private final Container[] moving;
+    private int movingCount;
     private final SimpleStack<Container> frozen;
+    /** Objects that were dropped from the reservation because the destination
+     * is inside them */
+    private ArrayList<Container> enclosing = null;
     private final long reservationID;
     private final Thread owner = Thread.currentThread();
     
@@ -1069,6 +1363,22 @@ public abstract class Container implements Named, Iterable<Active> {
     /** Locks and freezes necessary objects and provides a Reservation that can unlock them
      * Returns null if the destination object is inside the moving object */
     public static Reservation create(Container moving, Container destination) {
+      return create(new Container[] { moving }, destination);
+    }
+    
+    /** Locks and freezes the objects necessary to move all the given objects
+     * (which must be distinct, and must not include the destination) into the
+     * destination at once. Objects that the destination is inside of are left
+     * out of the reservation and listed in its enclosing list.
+     * Returns null if the destination is inside every one of the objects. */
+    public static Reservation create(Container[] moving, Container destination) {
+      return create(moving, new Container[] { destination });
+    }
+    
+    /** Reserves as create(Container[], Container) does, for moving the
+     * objects into any of several destinations, none of which may be one of
+     * the objects. Objects that any destination is inside of are left out. */
+    public static Reservation create(Container[] moving, Container[] destinations) {
       final SimpleStack<Container> frozen = new SimpleStack<Container>();
       
       final Reservation res = new Reservation(moving, frozen,
@@ -1077,52 +1387,83 @@ public abstract class Container implements Named, Iterable<Active> {
       totalBuilding.incrementAndGet();
       
 //      Main.log("concurrency", Thread.currentThread().getName() + " reserving to move "
-//      + moving + " into " + destination + " (" + res + ")");
+//      + moving + " into " + destinations + " (" + res + ")");
       
       new_attempt:
       while (true) { // let's make this work you and me
-        // Lock the moving object
-        moving.beginMovement(res);
+        // Lock the moving objects. Only the first is waited for, while nothing
+        // else is held; if a later one is busy, start over waiting on it first
+        for (int i = 0; i < res.movingCount; i++) {
+          Container m = res.moving[i];
+          if (i == 0) {
+            m.beginMovement(res);
+          } else if (!m.tryBeginMovement(res)) {
+            for (int j = 0; j < i; j++)
+              res.moving[j].endMovement();
+            res.moving[i] = res.moving[0];
+            res.moving[0] = m;
+            continue new_attempt;
+          }
+        }
         
-        // we don't need to freeze if it's a shift
-        if (moving.container == destination)
+        // we don't need to freeze if it's only a shift
+        boolean shifting = destinations.length == 1;
+        for (int i = 0; shifting && i < res.movingCount; i++) {
+          if (res.moving[i].container != destinations[0])
+            shifting = false;
+        }
+        if (shifting)
           break;
         
-        // freeze the destination & containers
-        Container c = destination;
-        while (c.container != null) {
-          Reservation priorReservation = c.freezeMovement(res);
-          
-          if (priorReservation != null) { // we need to defer to the other reservation
-            deferrals++;
-            // unlock everything
-            moving.endMovement();
-            while (!frozen.isEmpty())
-              frozen.pop().unfreezeMovement();
-            
-            // defer and try again
-            priorReservation.defer();
-            continue new_attempt;
-          } else { // we're good to go
-            frozen.push(c);
+        for (Container destination : destinations) {
+          // freeze the destination & containers, up to where it meets the
+          // moving objects' containers; nothing can be put inside a moving
+          // object without getting past its movement phase, so the containers
+          // they share can't end up inside one of them while we move it
+          Container stop = destination;
+          for (int i = 0; i < res.movingCount && stop != null; i++) {
+            Container from = res.moving[i].container;
+            stop = from == null ? null : stop.commonContainer(from);
+          }
+          Container c = destination;
+          while (c != stop && c.container != null) {
+            Reservation priorReservation = c.freezeMovement(res);
             
-            // check for invalid move
-            if (c.container == moving) { // destination is inside moving!
-              // this is the failure case
-//              Main.log("concurrency", Thread.currentThread().getName() + " failing to reserve " + moving + " --> " + destination);
+            if (priorReservation != null) { // we need to defer to the other reservation
+              deferrals++;
               // unlock everything
-              moving.endMovement();
+              for (int i = 0; i < res.movingCount; i++)
+                res.moving[i].endMovement();
               while (!frozen.isEmpty())
                 frozen.pop().unfreezeMovement();
-              
-              res.signalFinished();
-              
-              totalBuilding.decrementAndGet();
-              totalDeferrals.addAndGet(deferrals);
-              return null;
+            
+              // defer and try again
+              priorReservation.defer();
+              continue new_attempt;
+            } else { // we're good to go
+              frozen.push(c);
+            
+              // check for invalid move; only we can have put this object in its
+              // movement phase under our own reservation
+              if (c.container.currentReservation == res) { // destination is inside moving!
+//              Main.log("concurrency", Thread.currentThread().getName() + " failing to reserve " + c.container + " --> " + destination);
+                res.drop(c.container);
+            
+                if (res.movingCount == 0) {
+                  // this is the failure case; unlock everything
+                  while (!frozen.isEmpty())
+                    frozen.pop().unfreezeMovement();
+            
+                  res.signalFinished();
+            
+                  totalBuilding.decrementAndGet();
+                  totalDeferrals.addAndGet(deferrals);
+                  return null;
+                }
+              }
             }
+            c = c.container;
           }
-          c = c.container;
         }
         break;
       }
@@ -1136,12 +1477,29 @@ public abstract class Container implements Named, Iterable<Active> {
       return res;
     }
     
-    private Reservation(Container moving, SimpleStack<Container> frozen, long reservationID) {
+    private Reservation(Container[] moving, SimpleStack<Container> frozen, long reservationID) {
       this.moving = moving;
+      movingCount = moving.length;
       this.frozen = frozen;
       this.reservationID = reservationID;
     }
     
+    /** Ends the movement phase of one of the moving objects and removes it
+     * from the reservation, listing it as enclosing the destination */
+    private void drop(Container c) {
+      c.endMovement();
+      for (int i = 0; i < movingCount; i++) {
+        if (moving[i] == c) {
+          moving[i] = moving[--movingCount];
+          moving[movingCount] = c;
+          break;
+        }
+      }
+      if (enclosing == null)
+        enclosing = new ArrayList<Container>();
+      enclosing.add(c);
+    }
+    
     /** Provides the reservation ID */
     public long getID() {
       return reservationID;
@@ -1159,7 +1517,8 @@ public abstract class Container implements Named, Iterable<Active> {
       if (finished)
         return;
       
-      moving.endMovement();
+      for (int i = 0; i < movingCount; i++)
+        moving[i].endMovement();
       while (!frozen.isEmpty())
         frozen.pop().unfreezeMovement();
         
@@ -1213,6 +1572,12 @@ public abstract class Container implements Named, Iterable<Active> {
     return Reservation.totalDeferrals.get();
   }
   
+  /** The number of optimistic moves that met a concurrent move and were
+   * retried or handed to a reservation */
+  public static int totalOptimisticConflicts() {
+    return optimisticConflicts.get();
+  }
+  
   ///// TODO consider adding an expected from container
   /** Adds a contained object. Returns true on success */
   public final boolean add(Active obj, String prep,
@@ -1244,6 +1609,14 @@ public abstract class Container implements Named, Iterable<Active> {
       return false; // impossible
     }
     
+    for (int attempt = 0; attempt < Main.OPTIMISTIC_MOVE_ATTEMPTS; attempt++) {
+      int result = addOptimistically(obj, prep, actor, r);
+      if (result != CONFLICT)
+        return result == MOVED;
+      optimisticConflicts.incrementAndGet();
+      Thread.yield();
+    }
+    
     Container from;
     boolean updateFrom, updateTo;
     
@@ -1259,72 +1632,578 @@ public abstract class Container implements Named, Iterable<Active> {
     if (from == this) { // pre-containment check
       // obj will not be moving
       reservation.end();
-      
-      if (obj.preposition().equals(prep)) {
-        // exit
-        r.report("The " + obj.name() + " is already there.");
-        return false; // already there
-      } else { // here but with different preposition
-        // shift the object inside this one instead of moving it in the tree
-        if (!obj.movable()) { // mobility check
-          // exit
-          r.report("The " + obj.name() + " is unmovable.");
-          return false; // can't move
-        } else if (authorizeRemove(obj, this, actor, r)
-            && authorizeAdd(obj, prep, actor, r)) { // authorization check
-          enactShift(obj, prep, actor);
-          return true; // hooray
-        } else {
-          return false; // not authorized
-        }
-        
-      }
+      return shift(obj, prep, actor, r);
     }
     
-    // obj must not be destroyed
-    if (from == null) {
+    if (!authorizeMove(obj, from, prep, actor, r)) {
       reservation.end();
 //      ((Container)obj).unfreezeMovement();
-      r.report("The " + obj.name() + " no longer exists.");
       return false;
     }
     
-    // obj must be movable
-    if (!obj.movable()) {
-      reservation.end();
-//      ((Container)obj).unfreezeMovement();
-      r.report("The " + obj.name() + " is unmovable.");
-      return false; // can't move
-    }
-    
-    // obj's current container must authorize the removal
-    // this container must authorize its addition
-    if (!from.authorizeRemove(obj, this, actor, r)
-        || !authorizeAdd(obj, prep, actor, r)) {
-      reservation.end();
-//      ((Container)obj).unfreezeMovement();
-      return false; // not authorized
-    }
-    
     
     // NOW WE ACTUALLY DO THE MOVING BECAUSE IT'S OK
+    lockTreeForMove(obj, from, this);
     updateFrom = enactRemove(obj);
     updateTo = enactAdd(obj, prep);
+    unlockTreeForMove(obj, from, this);
 
     reservation.end();
+    finishMove(obj, from, actor, updateFrom, updateTo);
+    return true;
+  }
+  
+  private static final int MOVED = 0, REFUSED = 1, CONFLICT = 2;
+  /** Returned by readChainVersions() when the chain is busy */
+  private static final int[] BUSY_CHAIN = new int[0];
+  
+  /**
+   * Tries to move obj here without a reservation. Only obj is put into its
+   * movement phase, and only if that needs no waiting; the destination's
+   * containers are not frozen but have their link versions read instead.
+   * 
+   * A container that is mid-move has an odd version, so the chain is known to
+   * be still while none of the versions read are odd and none has changed by
+   * the time the move is enacted. Two movers that would each end up inside the
+   * other both begin their movement phase before reading the other's version,
+   * so at least one of them sees the other and backs off.
+   * 
+   * @return
+   *         MOVED or REFUSED if the move was decided (and reported), or
+   *         CONFLICT if obj or the destination chain was busy and nothing
+   *         was done
+   */
+  private int addOptimistically(Active obj, String prep,
+                                Active actor, Report r) {
+    Container moving = (Container)obj;
+    if (!moving.tryBeginMovement(null))
+      return CONFLICT;
+    
+    Container from;
+    boolean updateFrom, updateTo;
+    try {
+      int[] versions = readChainVersions(moving);
+      if (versions == null) {
+        r.report("You cannot put something inside itself.");
+        return REFUSED;
+      }
+      if (versions == BUSY_CHAIN)
+        return CONFLICT;
+      
+      from = obj.container();
+      
+      // obj must not be here already
+      if (from == this) // pre-containment check; shifted once it is released
+        updateFrom = updateTo = false;
+      else if (!authorizeMove(obj, from, prep, actor, r))
+        return REFUSED;
+      else if (!chainVersionsAre(versions))
+        return CONFLICT;
+      else {
+        lockTreeForMove(moving, from, this);
+        updateFrom = enactRemove(obj);
+        updateTo = enactAdd(obj, prep);
+        unlockTreeForMove(moving, from, this);
+      }
+    } finally {
+      moving.endMovement();
+    }
+    
+    if (from == this)
+      return shift(obj, prep, actor, r) ? MOVED : REFUSED;
+    finishMove(obj, from, actor, updateFrom, updateTo);
+    return MOVED;
+  }
+  
+  /**
+   * Reads the link versions of this container and those outside it, up to
+   * but not including the room. Returns null if [moving] is one of them, or
+   * BUSY_CHAIN if one of them is mid-move.
+   */
+  private int[] readChainVersions(Container moving) {
+    int[] versions = new int[8];
+    int n = 0;
+    for (Container c = this; c.container != null; c = c.container) {
+      if (c == moving)
+        return null;
+      int v = c.linkVersion;
+      if ((v & 1) != 0)
+        return BUSY_CHAIN;
+      if (n == versions.length)
+        versions = Arrays.copyOf(versions, n * 2);
+      versions[n++] = v;
+    }
+    return Arrays.copyOf(versions, n);
+  }
+  
+  /** Returns true iff the chain's link versions still match those read */
+  private boolean chainVersionsAre(int[] versions) {
+    int n = 0;
+    for (Container c = this; c.container != null; c = c.container) {
+      if (n == versions.length || c.linkVersion != versions[n++])
+        return false;
+    }
+    return n == versions.length;
+  }
+  
+  /** Everything done after obj has been moved here from [from] and its
+   * movement phase has ended */
+  private void finishMove(Active obj, Container from, Active actor,
+                          boolean updateFrom, boolean updateTo) {
+    reindexDeep(obj);
     
 //    Main.log("concurrency", Thread.currentThread().getName() + " propagating from " + from + " -- " + obj + " --> " + this);
-    // propagate stats
-    if (updateFrom) from.updateStats();
-    if (updateTo) this.updateStats();
+    // propagate stats; reported together, the two changes merge where the
+    // source and destination meet, and where they cancel stop there
+    if (updateFrom && updateTo) updateStats(from, this);
+    else if (updateFrom) from.updateStats();
+    else if (updateTo) this.updateStats();
     
     
     Main.log("movement", obj + " was moved to " + this + " by " + actor);
     from.task(() -> from.onRemove(obj, this, actor)); // notify source    
     this.task(() -> this.onAdd(obj, actor)); // notify destination
     ((Container)obj).task(() -> obj.onMoved(actor)); // notify moved object
-
-    return true;
+  }
+  
+  /**
+   * Adds several objects to this one at once, as though add() were called for
+   * each. The destination's containers are reserved once for the whole batch,
+   * and the stats of the destination and every source are propagated together
+   * so each affected container passes a single merged change upward.
+   * 
+   * Objects that cannot be moved stay where they are, with the reasons
+   * reported. Like concurrent adds into neighboring containers, each object is
+   * fit against this container's current contents but against the
+   * outer containers' contents as they were before the batch.
+   * 
+   * @return
+   *         the number of objects that were moved or shifted
+   */
+  public final int addAll(Collection<? extends Active> objs, String prep,
+                          Active actor, Report r) {
+    if (doomed) {
+      r.report("The " + name + " is doomed.");
+      return 0;
+    }
+    
+    if (!isLiveObject()) {
+      throw new ObjectNotLiveException(this);
+    }
+    
+    // distinct objects that may be moved, in order
+    Set<Container> candidates =
+        Collections.newSetFromMap(new LinkedHashMap<Container, Boolean>());
+    for (Active obj : objs) {
+      // obj must be initialized
+      if (!((Container)obj).initialized)
+        throw new IllegalArgumentException(obj + " has not been initialized");
+      
+      // obj must not be this object
+      if (obj == this) // self check
+        r.report("You cannot put something inside itself.");
+      else
+        candidates.add(obj);
+    }
+    if (candidates.isEmpty())
+      return 0;
+    
+    Reservation reservation =
+        Reservation.create(candidates.toArray(new Container[candidates.size()]),
+                           this);
+    if (reservation == null) {
+      for (int i = 0; i < candidates.size(); i++)
+        r.report("You cannot put something inside itself.");
+      return 0; // impossibru
+    }
+    if (reservation.enclosing != null) {
+      for (int i = 0; i < reservation.enclosing.size(); i++)
+        r.report("You cannot put something inside itself.");
+    }
+    
+    ArrayList<Active> moved = new ArrayList<Active>(reservation.movingCount);
+    ArrayList<Container> movedFrom = new ArrayList<Container>(reservation.movingCount);
+    ArrayList<Active> shifting = null;
+    Set<Container> changed =
+        Collections.newSetFromMap(new IdentityHashMap<Container, Boolean>());
+    
+    try {
+      for (int i = 0; i < reservation.movingCount; i++) {
+        Active obj = (Active)reservation.moving[i];
+        Container from = obj.container();
+        
+        if (from == this) { // shifts are done once the reservation ends
+          if (shifting == null)
+            shifting = new ArrayList<Active>();
+          shifting.add(obj);
+          continue;
+        }
+        
+        if (!authorizeMove(obj, from, prep, actor, r))
+          continue;
+        
+        lockTreeForMove(obj, from, this);
+        if (enactRemove(obj))
+          changed.add(from);
+        if (enactAdd(obj, prep))
+          changed.add(this);
+        unlockTreeForMove(obj, from, this);
+        moved.add(obj);
+        movedFrom.add(from);
+      }
+    } finally {
+      reservation.end();
+    }
+    
+    int count = moved.size();
+    if (shifting != null) {
+      for (Active obj : shifting) {
+        if (shift(obj, prep, actor, r))
+          count++;
+      }
+    }
+    
+    // propagate stats
+    updateStats(changed);
+    for (Active obj : moved)
+      reindexDeep(obj);
+    
+    for (int i = 0; i < moved.size(); i++) {
+      final Active obj = moved.get(i);
+      final Container from = movedFrom.get(i);
+      Main.log("movement", obj + " was moved to " + this + " by " + actor);
+      from.task(() -> from.onRemove(obj, this, actor)); // notify source
+      this.task(() -> this.onAdd(obj, actor)); // notify destination
+      ((Container)obj).task(() -> obj.onMoved(actor)); // notify moved object
+    }
+    
+    return count;
+  }
+  
+  /**
+   * Several moves that succeed or fail together, such as the two halves of a
+   * trade. Every object is reserved under a single Reservation, so the
+   * transaction waits its turn behind older reservations as a single add()
+   * would; then every move is authorized before any is made, and all are made
+   * under the tree locks at once, so nothing sees some done and others not.
+   * Stats are propagated once for the lot, merging the changes to any
+   * container they share.
+   * 
+   * Each object is fit against its destination's contents as they are before
+   * the transaction plus the objects authorized before it to go to the same
+   * destination, so several objects cannot overfill a destination together;
+   * but an object cannot take the room another one leaves in the same
+   * transaction. A destination must not be one of the objects moved, nor be
+   * inside one: the transaction fails instead.
+   * 
+   * Moves are added with move() and made with commit(), once.
+   */
+  public static final class Transaction {
+    private final ArrayList<Active> objs = new ArrayList<Active>();
+    private final ArrayList<Container> destinations = new ArrayList<Container>();
+    private final ArrayList<String> preps = new ArrayList<String>();
+    private boolean committed = false;
+    
+    /** Adds a move of obj into [destination] with the given preposition */
+    public Transaction move(Active obj, Container destination, String prep) {
+      if (committed)
+        throw new IllegalStateException("Transaction already committed");
+      if (objs.contains(obj))
+        throw new IllegalArgumentException(obj + " is already moved by this transaction");
+      objs.add(obj);
+      destinations.add(destination);
+      preps.add(prep);
+      return this;
+    }
+    
+    /** The number of moves in the transaction */
+    public int size() {
+      return objs.size();
+    }
+    
+    /**
+     * Makes every move, or none of them, reporting why not.
+     * 
+     * @return
+     *         true if every object was moved (or shifted)
+     */
+    public boolean commit(Active actor, Report r) {
+      if (committed)
+        throw new IllegalStateException("Transaction already committed");
+      committed = true;
+      
+      int n = objs.size();
+      Container[] moving = new Container[n];
+      for (int i = 0; i < n; i++) {
+        Container obj = objs.get(i), to = destinations.get(i);
+        if (!obj.initialized)
+          throw new IllegalArgumentException(obj + " has not been initialized");
+        if (objs.contains(to))
+          throw new IllegalArgumentException(to + " is moved by the same transaction");
+        if (to.doomed) {
+          r.report("The " + to.name + " is doomed.");
+          return false;
+        }
+        if (!to.isLiveObject())
+          throw new ObjectNotLiveException(to);
+        if (obj == to) {
+          r.report("You cannot put something inside itself.");
+          return false;
+        }
+        moving[i] = obj;
+      }
+      if (n == 0 || reportEnclosed(r))
+        return n == 0;
+      
+      Reservation reservation =
+          Reservation.create(moving.clone(),
+                             destinations.toArray(new Container[n]));
+      if (reservation == null || reservation.enclosing != null) {
+        // something was moved in the meantime to put a destination inside
+        if (reservation != null)
+          reservation.end();
+        if (!reportEnclosed(r))
+          r.report("You cannot put something inside itself.");
+        return false;
+      }
+      
+      Container[] froms = new Container[n];
+      Set<Container> changed =
+          Collections.newSetFromMap(new IdentityHashMap<Container, Boolean>());
+      try {
+        // authorize everything before anything is done
+        if (!authorize(froms, actor, r))
+          return false;
+        
+        ArrayList<Container> locked = lockTreeForMoves(moving, froms, destinations);
+        for (int i = 0; i < n; i++) {
+          Active obj = objs.get(i);
+          Container to = destinations.get(i);
+          if (froms[i] == to) {
+            to.enactShift(obj, preps.get(i), actor);
+            continue;
+          }
+          if (enactRemove(obj))
+            changed.add(froms[i]);
+          if (to.enactAdd(obj, preps.get(i)))
+            changed.add(to);
+        }
+        unlockTreeForMoves(moving, locked);
+      } finally {
+        reservation.end();
+      }
+      
+      updateStats(changed);
+      for (int i = 0; i < n; i++) {
+        final Active obj = objs.get(i);
+        final Container from = froms[i], to = destinations.get(i);
+        if (from == to)
+          continue;
+        reindexDeep(obj);
+        Main.log("movement", obj + " was moved to " + to + " by " + actor);
+        from.task(() -> from.onRemove(obj, to, actor)); // notify source
+        to.task(() -> to.onAdd(obj, actor)); // notify destination
+        ((Container)obj).task(() -> obj.onMoved(actor)); // notify moved object
+      }
+      return true;
+    }
+    
+    /**
+     * Authorizes every move, filling in [froms] with where each object is
+     * moved from. While it does, the content stats of each destination
+     * include the objects already authorized to go there.
+     */
+    private boolean authorize(Container[] froms, Active actor, Report r) {
+      IdentityHashMap<Container, Stats> pending =
+          new IdentityHashMap<Container, Stats>();
+      IdentityHashMap<Container, Stats> outer = projections.get();
+      projections.set(pending);
+      projecting.incrementAndGet();
+      try {
+        for (int i = 0; i < objs.size(); i++) {
+          Active obj = objs.get(i);
+          Container to = destinations.get(i);
+          String prep = preps.get(i);
+          froms[i] = obj.container();
+          
+          if (froms[i] == to) {
+            if (obj.preposition().equals(prep)) {
+              r.report("The " + obj.name() + " is already there.");
+              return false;
+            }
+            if (!obj.movable()) {
+              r.report("The " + obj.name() + " is unmovable.");
+              return false;
+            }
+            if (!to.authorizeRemove(obj, to, actor, r)
+                || !to.authorizeAdd(obj, prep, actor, r))
+              return false;
+            continue; // already counted in its contents
+          }
+          if (!to.authorizeMove(obj, froms[i], prep, actor, r))
+            return false;
+          
+          Stats add = obj.stats(), p = pending.get(to);
+          if (p == null)
+            pending.put(to, p = new Stats(0d, 0d, 0d, 0d));
+          p.size += add.size;
+          p.weight += add.weight;
+          p.length = Math.max(p.length, add.length);
+          p.width = Math.max(p.width, add.width);
+        }
+        return true;
+      } finally {
+        projecting.decrementAndGet();
+        if (outer == null)
+          projections.remove();
+        else
+          projections.set(outer);
+      }
+    }
+    
+    /**
+     * Reports a destination that is inside one of the objects moved, which
+     * would be carried along with it.
+     * 
+     * @return
+     *         true iff there was one
+     */
+    private boolean reportEnclosed(Report r) {
+      for (int i = 0; i < objs.size(); i++) {
+        Container to = destinations.get(i);
+        for (Container c = to.container; c != null; c = c.container) {
+          int m = objs.indexOf(c);
+          if (m < 0)
+            continue;
+          if (m == i)
+            r.report("You cannot put something inside itself.");
+          else
+            r.report("The " + to.name + " is inside the " + c.name
+                + ", which is being moved too.");
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+  
+  /**
+   * Takes the tree locks for several moves at once: X on every moved object,
+   * and IX on every source and destination and everything outside them
+   * except the moved objects, which X covers. Returns the containers locked
+   * IX, to be let go of by unlockTreeForMoves(); a container is listed once
+   * for each time it was locked. As with lockTreeForMove(), nothing is waited
+   * for while anything is held.
+   */
+  private static ArrayList<Container> lockTreeForMoves(Container[] objs,
+                                                       Container[] froms,
+                                                       List<Container> tos) {
+    ArrayList<Container> locked = new ArrayList<Container>();
+    while (true) {
+      Container busy = tryLockTreeForMoves(objs, froms, tos, locked);
+      if (busy == null)
+        return locked;
+      Mode mode = indexOf(objs, busy) >= 0 ? Mode.X : Mode.IX;
+      busy.treeLock.lock(mode);
+      busy.treeLock.unlock(mode);
+    }
+  }
+  
+  private static Container tryLockTreeForMoves(Container[] objs,
+                                               Container[] froms,
+                                               List<Container> tos,
+                                               ArrayList<Container> locked) {
+    int x = 0;
+    for (; x < objs.length; x++)
+      if (!objs[x].treeLock.tryLock(Mode.X))
+        break;
+    Container busy = x < objs.length ? objs[x] : null;
+    for (int i = 0; busy == null && i < objs.length * 2; i++) {
+      Container c = i < objs.length ? froms[i] : tos.get(i - objs.length);
+      // a moved object's place is fixed while we hold it, so the walk can
+      // go on past it
+      for (; c != null && busy == null; c = c.container) {
+        if (indexOf(objs, c) >= 0)
+          continue;
+        if (c.treeLock.tryLock(Mode.IX))
+          locked.add(c);
+        else
+          busy = c;
+      }
+    }
+    if (busy == null)
+      return null;
+    
+    for (Container c : locked)
+      c.treeLock.unlock(Mode.IX);
+    locked.clear();
+    for (int i = 0; i < x; i++)
+      objs[i].treeLock.unlock(Mode.X);
+    return busy;
+  }
+  
+  private static void unlockTreeForMoves(Container[] objs,
+                                         ArrayList<Container> locked) {
+    for (Container c : locked)
+      c.treeLock.unlock(Mode.IX);
+    for (Container obj : objs)
+      obj.treeLock.unlock(Mode.X);
+  }
+  
+  private static int indexOf(Container[] objs, Container c) {
+    for (int i = 0; i < objs.length; i++)
+      if (objs[i] == c)
+        return i;
+    return -1;
+  }
+  
+  /**
+   * Checks whether obj may be moved from its container, from, into this one,
+   * reporting why not if it can't.
+   */
+  private boolean authorizeMove(Active obj, Container from, String prep,
+                                Active actor, Report r) {
+    // obj must not be destroyed
+    if (from == null) {
+      r.report("The " + obj.name() + " no longer exists.");
+      return false;
+    }
+    
+    // obj must be movable
+    if (!obj.movable()) {
+      r.report("The " + obj.name() + " is unmovable.");
+      return false; // can't move
+    }
+    
+    // obj's current container must authorize the removal
+    // this container must authorize its addition
+    return from.authorizeRemove(obj, this, actor, r)
+        && authorizeAdd(obj, prep, actor, r);
+  }
+  
+  /**
+   * Shifts an object already in this one to the given preposition, if it is
+   * not already there and is authorized. Returns true on success.
+   */
+  private boolean shift(Active obj, String prep, Active actor, Report r) {
+    if (obj.preposition().equals(prep)) {
+      // exit
+      r.report("The " + obj.name() + " is already there.");
+      return false; // already there
+    } else { // here but with different preposition
+      // shift the object inside this one instead of moving it in the tree
+      if (!obj.movable()) { // mobility check
+        // exit
+        r.report("The " + obj.name() + " is unmovable.");
+        return false; // can't move
+      } else if (authorizeRemove(obj, this, actor, r)
+          && authorizeAdd(obj, prep, actor, r)) { // authorization check
+        enactShift(obj, prep, actor);
+        return true; // hooray
+      } else {
+        return false; // not authorized
+      }
+    }
   }
   
   /**
@@ -1354,21 +2233,27 @@ public abstract class Container implements Named, Iterable<Active> {
     beginMovement(null);
     try {
       if (container != null) {
-        if (enactRemove((Active)this)) container.updateStats();
-        
-        container.task(() -> container.onRemove((Active)this, null, Main.creator));
+        final Container from = container;
+        lockTreeForMove(this, from, null);
+        boolean update = enactRemove((Active)this);
         container = null;
+        unlockTreeForMove(this, from, null);
+        if (update) from.updateStats();
+        
+        from.task(() -> from.onRemove((Active)this, null, Main.creator));
       }
     } finally {
       endMovement();
       //Main.log("debug", this + " movement ended");
     }
+    if (this instanceof Active)
+      reindexDeep((Active)this);
     
     if (contents != null)
       while (!contents.isEmpty())
         // destroy contents first
         contents.peekLast().destroy(actor);
-    registry.remove(internalName);
+    registry.unregister(this);
     task(() -> onDestroyed(actor));
     
     Main.log("destruction", this + " was incinerated by " + actor);
@@ -1432,6 +2317,18 @@ public abstract class Container implements Named, Iterable<Active> {
     }
   }
   
+  /**
+   * Updates the word index for an object that may have changed Rooms, and for
+   * its contents if it did.
+   */
+  private static void reindexDeep(Active obj) {
+    // the contents are read under their lock, so anything put in obj after
+    // this reads obj's new room for itself
+    if (obj.reindex())
+      for (Active a : ((Container)obj).allContents())
+        reindexDeep(a);
+  }
+  
   /**
    * @param actor
    *          The object that caused the move
@@ -1491,13 +2388,18 @@ public abstract class Container implements Named, Iterable<Active> {
     return true;
   }
   
-  private void task(Runnable task) {
+  /**
+   * Queues a callback for this container. Callbacks for the same container
+   * run one at a time in the order they were queued.
+   */
+  final void task(Runnable task) {
     totalTaskCount.incrementAndGet();
-    Tasking.queue(() -> {
-      task.run();
-      totalTaskCount.decrementAndGet();
-      if (!taskQueue.isEmpty())
-        Tasking.queue(taskQueue.poll());
+    taskLane.queue(() -> {
+      try {
+        task.run();
+      } finally {
+        totalTaskCount.decrementAndGet();
+      }
     });
   }
   
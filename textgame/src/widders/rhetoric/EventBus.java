@@ -0,0 +1,143 @@
+package widders.rhetoric;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import widders.util.Bits;
+
+
+/**
+ * Broadcasts the actions taken on objects in a Room to everything subscribed
+ * to it, so an observer of the whole room needn't watch every object in it.
+ *
+ * Subscribers receive see() just as a watcher would. A subscription can be
+ * limited to one verb, to targets with certain classifications, and to a
+ * subtree of the room.
+ *
+ * Publishing only queues the event. Events are dispatched in order on the
+ * bus's own task lane, several per turn. The subscription list is replaced
+ * rather than changed, so neither side takes a lock.
+ *
+ * @author widders
+ */
+public final class EventBus {
+  private static final Subscription[] NONE = new Subscription[0];
+  private static final AtomicReferenceFieldUpdater<EventBus, Subscription[]> SUBS =
+      AtomicReferenceFieldUpdater.newUpdater(EventBus.class, Subscription[].class,
+                                             "subscriptions");
+
+  private final Room room;
+  private volatile Subscription[] subscriptions = NONE;
+  private final Tasking.Lane lane = new Tasking.Lane();
+
+  EventBus(Room room) {
+    this.room = room;
+  }
+
+  /** A standing request to see events in a Room */
+  public final class Subscription {
+    private final Active subscriber;
+    private final Container scope;
+    /* null for every verb */
+    private final String verb;
+    private final long[] classMask;
+
+    private Subscription(Active subscriber, Container scope, String verb,
+                         long[] classMask) {
+      this.subscriber = subscriber;
+      this.scope = scope;
+      this.verb = verb;
+      this.classMask = classMask;
+    }
+
+    /** Returns true iff the event should be seen by this subscription */
+    private boolean matches(String verb, Active target) {
+      return (this.verb == null || this.verb.equals(verb))
+          && target.isClassified(classMask)
+          && (scope == room || scope.containsDeep(target));
+    }
+
+    public Active subscriber() {
+      return subscriber;
+    }
+
+    /** Ends the subscription; returns true iff it was still active */
+    public boolean cancel() {
+      return unsubscribe(this);
+    }
+
+    public boolean isCancelled() {
+      return indexOf(subscriptions, this) < 0;
+    }
+  }
+
+  /**
+   * Subscribes [subscriber] to events on targets anywhere inside [scope] that
+   * have the given verb, or any verb if it is null, and have all of the given
+   * classifications.
+   */
+  Subscription subscribe(Active subscriber, Container scope, String verb,
+                         String... classes) {
+    if (subscriber == null || scope == null)
+      throw new NullPointerException();
+    long[] mask = Bits.EMPTY;
+    if (classes != null)
+      for (String c : classes)
+        mask = Bits.set(mask, Words.internClass(c));
+
+    Subscription sub = new Subscription(subscriber, scope, verb, mask);
+    Subscription[] old, x;
+    do {
+      old = subscriptions;
+      x = Arrays.copyOf(old, old.length + 1);
+      x[old.length] = sub;
+    } while (!SUBS.compareAndSet(this, old, x));
+    return sub;
+  }
+
+  private boolean unsubscribe(Subscription sub) {
+    Subscription[] old, x;
+    do {
+      old = subscriptions;
+      int i = indexOf(old, sub);
+      if (i < 0)
+        return false;
+      if (old.length == 1) {
+        x = NONE;
+      } else {
+        x = new Subscription[old.length - 1];
+        System.arraycopy(old, 0, x, 0, i);
+        System.arraycopy(old, i + 1, x, i, x.length - i);
+      }
+    } while (!SUBS.compareAndSet(this, old, x));
+    return true;
+  }
+
+  private static int indexOf(Subscription[] subs, Subscription sub) {
+    for (int i = 0; i < subs.length; i++)
+      if (subs[i] == sub)
+        return i;
+    return -1;
+  }
+
+  /** The number of active subscriptions */
+  public int subscriptionCount() {
+    return subscriptions.length;
+  }
+
+  /** Queues an event for dispatch to the matching subscriptions */
+  void publish(Active actor, String verb, Active target, Active indirect) {
+    if (subscriptions.length == 0)
+      return;
+    lane.queue(() -> dispatch(actor, verb, target, indirect));
+  }
+
+  private void dispatch(Active actor, String verb, Active target,
+                        Active indirect) {
+    for (Subscription sub : subscriptions) {
+      // subscribers don't see what they do to themselves
+      if (sub.subscriber != target && sub.matches(verb, target))
+        sub.subscriber.see(actor, verb, target, indirect);
+    }
+  }
+}
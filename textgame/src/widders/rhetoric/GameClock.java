@@ -0,0 +1,169 @@
+package widders.rhetoric;
+
+/**
+ * The source of game time for Chronology, in milliseconds UTC.
+ *
+ * Game time never goes backwards. The wall clock follows real time; a scaled
+ * clock runs at some multiple of real time and can be paused; a stepped clock
+ * only moves when it is told to, so a run can be replayed exactly.
+ *
+ * @author widders
+ */
+public abstract class GameClock {
+  private static final GameClock WALL = new GameClock() {
+    @Override
+    public long now() {
+      return System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+      return "wall clock";
+    }
+  };
+
+  /** Returns the current game time in millis UTC */
+  public abstract long now();
+
+  /**
+   * Returns the number of real milliseconds it will take for gameMs of game
+   * time to pass, or Long.MAX_VALUE if game time is not passing on its own.
+   */
+  public long realDelay(long gameMs) {
+    return gameMs;
+  }
+
+  /** The clock that follows real time */
+  public static GameClock wall() {
+    return WALL;
+  }
+
+
+  /**
+   * A monotonic clock that runs at a multiple of real time, and can be paused
+   * and resumed.
+   */
+  public static final class Scaled extends GameClock {
+    /** The clock's reading at a point in real time; replaced on any change */
+    private static final class Base {
+      final long time;
+      final long nanos;
+      final double rate;
+
+      Base(long time, long nanos, double rate) {
+        this.time = time;
+        this.nanos = nanos;
+        this.rate = rate;
+      }
+
+      long at(long nanos) {
+        return time + (long)((nanos - this.nanos) * rate / 1e6);
+      }
+    }
+
+    private volatile Base base;
+    /** The rate to resume at while paused */
+    private double resumeRate;
+
+    /** Creates a clock that starts at the given time and runs at rate */
+    public Scaled(long start, double rate) {
+      if (rate < 0)
+        throw new IllegalArgumentException("Time cannot run backwards");
+      base = new Base(start, System.nanoTime(), rate);
+      resumeRate = rate;
+    }
+
+    /** Creates a clock that carries on from the current game time */
+    public Scaled(double rate) {
+      this(Chronology.now(), rate);
+    }
+
+    @Override
+    public long now() {
+      return base.at(System.nanoTime());
+    }
+
+    @Override
+    public long realDelay(long gameMs) {
+      double rate = base.rate;
+      return rate == 0 ? Long.MAX_VALUE : (long)Math.ceil(gameMs / rate);
+    }
+
+    /** Game milliseconds per real millisecond */
+    public double rate() {
+      return base.rate;
+    }
+
+    /** Changes the speed of the clock from now on */
+    public synchronized void setRate(double rate) {
+      if (rate < 0)
+        throw new IllegalArgumentException("Time cannot run backwards");
+      long nanos = System.nanoTime();
+      base = new Base(base.at(nanos), nanos, rate);
+      if (rate > 0) resumeRate = rate;
+    }
+
+    public synchronized void pause() {
+      long nanos = System.nanoTime();
+      base = new Base(base.at(nanos), nanos, 0);
+    }
+
+    public synchronized void resume() {
+      if (base.rate == 0) setRate(resumeRate);
+    }
+
+    public boolean isPaused() {
+      return base.rate == 0;
+    }
+
+    @Override
+    public String toString() {
+      return "clock at " + base.rate + "x";
+    }
+  }
+
+
+  /**
+   * A clock that only moves when it is stepped. Chronology.advance() steps it
+   * from one due event to the next.
+   */
+  public static final class Stepped extends GameClock {
+    private volatile long time;
+
+    public Stepped(long start) {
+      time = start;
+    }
+
+    /** Creates a clock that carries on from the current game time */
+    public Stepped() {
+      this(Chronology.now());
+    }
+
+    @Override
+    public long now() {
+      return time;
+    }
+
+    @Override
+    public long realDelay(long gameMs) {
+      return Long.MAX_VALUE;
+    }
+
+    /** Moves the clock to the given time, which must not be in the past */
+    public synchronized void set(long newTime) {
+      if (newTime < time)
+        throw new IllegalArgumentException("Time cannot run backwards");
+      time = newTime;
+    }
+
+    /** Moves the clock forward by ms */
+    public synchronized void step(long ms) {
+      set(time + ms);
+    }
+
+    @Override
+    public String toString() {
+      return "stepped clock";
+    }
+  }
+}
@@ -39,7 +39,7 @@ public class Logging extends Thread {
       
       @Override
       public void run() {
-        outputStandard(Main.dateFormat.format(new Date(Chronology.now())) + "(-)"
+        outputStandard(Main.dateFormat.format(new Date()) + "(-)"
                + " Logging terminating: System shutting down");
         outputShutdown();
         alive = false;
@@ -50,14 +50,14 @@ public class Logging extends Thread {
             output(queue.poll());
         }
         
-        outputStandard(Main.dateFormat.format(new Date(Chronology.now())) + "(-)"
+        outputStandard(Main.dateFormat.format(new Date()) + "(-)"
             + " Logging: shut down");
       }
       
     };
     
     Runtime.getRuntime().addShutdownHook(shutdownHook);
-    outputStandard(Main.dateFormat.format(new Date(Chronology.now()))
+    outputStandard(Main.dateFormat.format(new Date())
            + "(-) Logging: started");
     start();
   }
@@ -108,7 +108,7 @@ public class Logging extends Thread {
   }
   
   public String loggingState() {
-    return (queue.size() > 0 ? (Chronology.now() - queue.peek().time) : 0)
+    return (queue.size() > 0 ? (System.currentTimeMillis() - queue.peek().time) : 0)
         + "ms delayed"
         + ", " + queue.size() + " logs to push"
         + ", ~" + currentBufferSize.get() + "B buffered"
@@ -117,7 +117,7 @@ public class Logging extends Thread {
   }
   
   private void outputQueueWarning() {
-    long now = Chronology.now();
+    long now = System.currentTimeMillis();
     String warn = Main.dateFormat.format(new Date(now)) + "(-)"
         + " Logging: LOGJAM WARNING - "
         + loggingState();
@@ -126,7 +126,7 @@ public class Logging extends Thread {
   }
   
   private void outputQueueDewarn() {
-    long now = Chronology.now();
+    long now = System.currentTimeMillis();
     LogEvent event = queue.peek();
     String dewarn;
     
@@ -144,7 +144,7 @@ public class Logging extends Thread {
   }
   
   private void outputShutdown() {
-    long now = Chronology.now();
+    long now = System.currentTimeMillis();
     outputStandard(Main.dateFormat.format(new Date(now)) + "(-)"
         + " Logging: shutting down - "
         + loggingState());
@@ -162,7 +162,7 @@ public class Logging extends Thread {
     s = event.s;
     time = event.time;
     outputVerbose(Main.dateFormat.format(new Date(time))
-           + "(+" + (Chronology.now() - time) + ") "
+           + "(+" + (System.currentTimeMillis() - time) + ") "
            + topic + ": " + s);
     currentBufferSize.addAndGet(-event.size);
   }
@@ -192,7 +192,7 @@ public class Logging extends Thread {
         output(queue.poll());
     }
     
-    outputStandard(Main.dateFormat.format(new Date(Chronology.now()))
+    outputStandard(Main.dateFormat.format(new Date())
            + "(-) Logging: shut down");
   }
   
@@ -208,7 +208,7 @@ public class Logging extends Thread {
       this.topic = topic;
       this.s = s;
       size = topic.length() + s.length() + OVERHEAD;
-      this.time = Chronology.now();
+      this.time = System.currentTimeMillis();
     }
   }
 }
\ No newline at end of file
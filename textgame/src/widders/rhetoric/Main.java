@@ -26,8 +26,20 @@ import junit.framework.TestResult;
  */
 public class Main {
   
-  public static final int SCHEDULER_THREAD_COUNT = 3;
+  public static final long SCHEDULER_TICK_MS = 10;
+  public static final int TASKING_THREAD_COUNT =
+      Runtime.getRuntime().availableProcessors();
   public static final int LOGGING_BUFFER = 1 << 30;
+  /** Objects with more watchers than this notify them asynchronously */
+  public static final int WATCHER_INLINE_LIMIT = 64;
+  /** The number of watchers notified per task when notifying asynchronously */
+  public static final int WATCHER_BATCH_SIZE = 256;
+  /** Times a move is tried without a reservation before one is made; 0 to
+   * always make one */
+  public static final int OPTIMISTIC_MOVE_ATTEMPTS = 3;
+  /** Time in milliseconds over which stats changes are gathered before they
+   * are propagated, while they are batched; see Container.batchStats() */
+  public static final long STATS_EPOCH_MS = SCHEDULER_TICK_MS;
   
   /** The main Debug object */
   public static Logging logger;
@@ -46,7 +58,7 @@ public class Main {
   /** The main Chronology object */
   public static final Chronology chrono =
       new Chronology(debugRoom, "in",
-                     SCHEDULER_THREAD_COUNT);
+                     SCHEDULER_TICK_MS);
   /** The game's official random number generator */
   public static final Random rand = new Random();
   /** A dummy report for general use */
@@ -101,6 +113,8 @@ public class Main {
                         ex);
       }
       
+      Tasking.start(TASKING_THREAD_COUNT);
+      
       //// RUN ////
       
       test();
@@ -109,6 +123,10 @@ public class Main {
     } finally {
       //// CLEANUP ////
       
+      try {
+        if (!Tasking.shutdown(5000))
+          System.out.println("Tasking did not finish in time");
+      } catch (InterruptedException ex) { }
       if (logger != null) logger.shutdown();
       else System.out.println("Logger did not instantiate");
       System.exit(0);
@@ -117,6 +135,9 @@ public class Main {
   
   static void test() {
     testSPQ();
+    testConcurrentCPQ();
+    testCSQ();
+    testTransaction();
     testSets();
     //testContent();
     testConcurrency();
@@ -138,7 +159,7 @@ public class Main {
     
     log("concurrency test", "environment initialized");
     
-    long testStarted = Chronology.now();
+    long testStarted = System.currentTimeMillis();
     
     for (int i = 0; i < threadCount; i++)
       testers[i] = new TestThread(i);
@@ -150,12 +171,12 @@ public class Main {
     
     for (int time = 0; time < testTime; time++) {
       try {
-        Thread.sleep(1000 + (testStarted + time * 1000 - Chronology.now()));
+        Thread.sleep(1000 + (testStarted + time * 1000 - System.currentTimeMillis()));
       } catch (InterruptedException ex) {
         ex.printStackTrace();
         break;
       }
-      long now = Chronology.now();
+      long now = System.currentTimeMillis();
       while ((now - (testStarted + time * 1000)) > 1000) time++;
       for (int i = 0; i < threadCount; i++) {
         log("concurrency test", testers[i].getName() + ": " +
@@ -166,6 +187,12 @@ public class Main {
       lastDeferrals = Container.totalReservationDeferrals();
       log("concurrency test", Container.activeReservations() + " active reservations");
       log("concurrency test", Container.buildingReservations() + " building reservations");
+      log("concurrency test", Tasking.queueCount() + " tasks queued, "
+          + Tasking.completedCount() + " run, "
+          + String.format("%.3f", Tasking.averageLatency()) + "ms average latency, "
+          + String.format("%.3f", Tasking.maxLatency()) + "ms max latency, "
+          + String.format("%.0f", Tasking.throughput()) + " tasks/s, "
+          + Tasking.stealCount() + " steals");
       System.out.println("Concurrency test: " + (time + 1));
     }
     log("concurrency test", "stopping test threads");
@@ -190,7 +217,7 @@ public class Main {
     TestThread.logStructure();
     
     log("concurrency test", "threads stopped");
-    log("concurrency test", totalMoves + " total moves completed in " + ((Chronology.now() - testStarted) / 1000d) + " seconds");
+    log("concurrency test", totalMoves + " total moves completed in " + ((System.currentTimeMillis() - testStarted) / 1000d) + " seconds");
     log("concurrency test", (Container.totalReservationDeferrals()) + " total deferrals");
     log("concurrency test", "concurrency test done");
   }
@@ -406,6 +433,189 @@ public class Main {
     log("CPQ test", failed ? "TESTS FAILED!" : "Test successful.");
   }
   
+  static void testConcurrentCPQ() {
+    final int threadCount = 4;
+    final int perThread = 20000;
+    final ConcurrentCancellablePriorityQueue<Integer> ccpq =
+        new ConcurrentCancellablePriorityQueue<Integer>();
+    final Cancellable[] handles = new Cancellable[threadCount * perThread];
+    final int[] polled = new int[handles.length];
+    boolean failed = false;
+    
+    // half the threads add and cancel every third entry, half poll
+    Thread[] threads = new Thread[threadCount * 2];
+    for (int t = 0; t < threadCount; t++) {
+      final int first = t * perThread;
+      threads[t] = new Thread(() -> {
+        for (int i = first; i < first + perThread; i++) {
+          handles[i] = ccpq.addCancellable(i);
+          if ((i - first) % 3 == 2) handles[i - 2].cancel();
+        }
+      });
+      threads[threadCount + t] = new Thread(() -> {
+        Integer value;
+        int misses = 0;
+        while (misses < 1000) {
+          if ((value = ccpq.poll()) == null) {
+            misses++;
+            Thread.yield();
+          } else {
+            misses = 0;
+            synchronized (polled) {
+              polled[value]++;
+            }
+          }
+        }
+      });
+    }
+    for (Thread t : threads)
+      t.start();
+    try {
+      for (Thread t : threads)
+        t.join();
+    } catch (InterruptedException ex) { throw new Error(ex); }
+    
+    Integer value;
+    while ((value = ccpq.poll()) != null)
+      polled[value]++;
+    for (int i = 0; i < handles.length; i++) {
+      boolean cancelled = handles[i].isCancelled();
+      if (polled[i] > 1 || (polled[i] == 1) == cancelled
+          || (polled[i] == 1) != handles[i].hasRun()) {
+        log("CCPQ test", "ERROR! entry " + i + " polled " + polled[i]
+            + " times, cancelled: " + cancelled);
+        failed = true;
+      }
+    }
+    
+    log("CCPQ test", failed ? "TESTS FAILED!" : "Test successful.");
+  }
+  
+  static void testCSQ() {
+    final int entries = 20000;
+    boolean failed = false;
+    
+    for (int arity = 2; arity <= 8; arity <<= 1) {
+      CancellableScheduleQueue<Integer> csq =
+          new CancellableScheduleQueue<Integer>(1, arity);
+      // the number of entries that should be queued at each time
+      TreeMap<Long, Integer> expected = new TreeMap<Long, Integer>();
+      long[] tokens = new long[entries];
+      long[] times = new long[entries];
+      Cancellable[] tickets = new Cancellable[entries];
+      boolean[] queued = new boolean[entries];
+      int added = 0, count = 0;
+      
+      // add, cancel (old tokens too, whose handles have been reused) and poll
+      // at random, checking everything against the expected times
+      while (added < entries || count > 0) {
+        int op = rand.nextInt(8);
+        if (op < 4 && added < entries) {
+          int i = added++;
+          times[i] = rand.nextInt(1000);
+          if (rand.nextBoolean())
+            tokens[i] = csq.schedule(i, times[i]);
+          else
+            tickets[i] = csq.add(i, times[i]);
+          queued[i] = true;
+          count++;
+          expected.merge(times[i], 1, Integer::sum);
+        } else if (op < 6 && added > 0) {
+          int i = rand.nextInt(added);
+          boolean wrong = tickets[i] != null
+              ? tickets[i].cancel() != (queued[i] || tickets[i].isCancelled())
+              : csq.cancel(tokens[i]) != queued[i];
+          if (wrong) {
+            log("CSQ test", "ERROR! arity " + arity + " entry " + i
+                + " cancelled wrongly, queued: " + queued[i]);
+            failed = true;
+          }
+          if (queued[i]) {
+            queued[i] = false;
+            count--;
+            expected.merge(times[i], -1, (a, b) -> a + b == 0 ? null : a + b);
+          }
+        } else {
+          Integer value = csq.poll();
+          if (value == null
+              ? count != 0
+              : !queued[value] || times[value] != expected.firstKey()
+                || (tickets[value] != null && !tickets[value].hasRun())) {
+            log("CSQ test", "ERROR! arity " + arity + " polled " + value
+                + " when " + count + " were queued");
+            failed = true;
+            if (value == null)
+              break; // the rest will never come
+          }
+          if (value != null && queued[value]) {
+            queued[value] = false;
+            count--;
+            expected.merge(times[value], -1, (a, b) -> a + b == 0 ? null : a + b);
+          }
+        }
+        if (csq.size() != count) {
+          log("CSQ test", "ERROR! arity " + arity + " size " + csq.size()
+              + " should be " + count);
+          failed = true;
+          break;
+        }
+      }
+      
+      for (int i = 0; i < entries; i++) {
+        if (tickets[i] == null && csq.isScheduled(tokens[i])) {
+          log("CSQ test", "ERROR! arity " + arity + " entry " + i
+              + " is still scheduled");
+          failed = true;
+        }
+      }
+    }
+    
+    log("CSQ test", failed ? "TESTS FAILED!" : "Test successful.");
+  }
+  
+  static void testTransaction() {
+    boolean failed = false;
+    Active bag = null;
+    Active[] cubes = new Active[4];
+    
+    try {
+      (bag = new PlasticBag(debugRoom, "in")).init();
+      // two of these fit in the bag alone but not together, two of the rest do
+      (cubes[0] = new DebugCube(debugRoom, "in", .2)).init();
+      (cubes[1] = new DebugCube(debugRoom, "in", .2)).init();
+      (cubes[2] = new DebugCube(debugRoom, "in", .1)).init();
+      (cubes[3] = new DebugCube(debugRoom, "in", .1)).init();
+    } catch (DoesNotFitException ex) {
+      throw new Error("Could not create the transaction test objects", ex);
+    }
+    
+    if (!bag.canFit(cubes[0])
+        || new Container.Transaction().move(cubes[0], bag, "in")
+                                      .move(cubes[1], bag, "in")
+                                      .commit(creator, fakeReport)
+        || bag.contentCount() != 0 || bag.availableSize() < 0d) {
+      log("Transaction test", "ERROR! two large cubes overfilled the bag: "
+          + bag.contentSize() + " m3 of contents, "
+          + bag.availableSize() + " m3 left");
+      failed = true;
+    }
+    
+    if (!new Container.Transaction().move(cubes[2], bag, "in")
+                                    .move(cubes[3], bag, "in")
+                                    .commit(creator, fakeReport)
+        || bag.contentCount() != 2) {
+      log("Transaction test", "ERROR! two small cubes did not both fit: "
+          + bag.contentCount() + " in the bag");
+      failed = true;
+    }
+    
+    for (Active cube : cubes)
+      cube.destroy(creator);
+    bag.destroy(creator);
+    
+    log("Transaction test", failed ? "TESTS FAILED!" : "Test successful.");
+  }
+  
   
   /** Wraps the main debug's print method */
   public static void log(String topic, String s) {
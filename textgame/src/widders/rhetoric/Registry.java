@@ -0,0 +1,82 @@
+package widders.rhetoric;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import widders.util.ConcurrentLongMap;
+
+
+/**
+ * The registry of Containers that have been created and not destroyed,
+ * keyed by their numeric iD.
+ *
+ * Objects are held weakly, so an object that is dropped without being
+ * destroyed (such as one whose init() was never called) is cleared from the
+ * registry once it is collected. Rooms are the roots of the world and
+ * nothing else need refer to them, so they are held strongly until they are
+ * destroyed.
+ *
+ * @author widders
+ */
+final class Registry {
+  private final ConcurrentLongMap<Entry> entries =
+      new ConcurrentLongMap<Entry>(1 << 16);
+  private final ReferenceQueue<Container> collected =
+      new ReferenceQueue<Container>();
+
+  private static final class Entry extends WeakReference<Container> {
+    final long iD;
+    /** Set only for Rooms */
+    final Container strong;
+
+    Entry(Container c, ReferenceQueue<Container> queue) {
+      super(c, queue);
+      iD = c.iD;
+      strong = c instanceof Room ? c : null;
+    }
+  }
+
+  void register(Container c) {
+    expunge();
+    entries.put(c.iD, new Entry(c, collected));
+  }
+
+  void unregister(Container c) {
+    Entry e = entries.remove(c.iD);
+    if (e != null) e.clear();
+  }
+
+  Container get(long iD) {
+    Entry e = entries.get(iD);
+    return e == null ? null : e.get();
+  }
+
+  /**
+   * Looks up a Container by its internal name, "name_iD". Only the iD is
+   * looked up; the rest of the name is checked against what was found.
+   */
+  Container get(String internalName) {
+    int split = internalName.lastIndexOf('_');
+    if (split < 0) return null;
+    long iD;
+    try {
+      iD = Long.parseLong(internalName.substring(split + 1));
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+    Container c = get(iD);
+    return c != null && c.toString().equals(internalName) ? c : null;
+  }
+
+  /** The number of registered objects, including any not yet cleared */
+  int size() {
+    return entries.size();
+  }
+
+  /** Clears the entries of objects that have been collected */
+  void expunge() {
+    Entry e;
+    while ((e = (Entry)collected.poll()) != null)
+      entries.remove(e.iD, e);
+  }
+}
@@ -13,6 +13,11 @@ public class Room extends Container {
   protected Hashtable<String, Exit> exits = new Hashtable<String, Exit>();
   private String des;
   
+  /** Everything in this room by identity and property words */
+  final WordIndex index = new WordIndex();
+  /** Broadcasts actions on everything in this room to subscribers */
+  final EventBus events = new EventBus(this);
+  
   /** Maximum total size of contents */
   protected double sizeLimit;
   /** Maximum length of contents */
@@ -50,6 +55,40 @@ public class Room extends Container {
     return des;
   }
   
+  /**
+   * Returns the number of objects anywhere in this room that are classified
+   * as [c]
+   */
+  public final int classifiedCount(String c) {
+    int id = Words.findClass(c);
+    return id < 0 ? 0 : index.count(id);
+  }
+  
+  /** Returns true iff anything in this room is classified as [c] */
+  public final boolean containsClassified(String c) {
+    return classifiedCount(c) > 0;
+  }
+  
+  /**
+   * Subscribes [subscriber] to see actions with the given verb (or any verb,
+   * if null) on anything in this room that has all the given classifications
+   */
+  public final EventBus.Subscription subscribe(Active subscriber, String verb,
+                                               String... classes) {
+    return events.subscribe(subscriber, this, verb, classes);
+  }
+  
+  /**
+   * Subscribes [subscriber] as subscribe(Active, String, String...) does, but
+   * only to actions on things inside [scope], which must be in this room
+   */
+  public final EventBus.Subscription subscribe(Active subscriber, Container scope,
+                                               String verb, String... classes) {
+    if (scope != this && !containsDeep(scope))
+      throw new IllegalArgumentException(scope + " is not in " + this);
+    return events.subscribe(subscriber, scope, verb, classes);
+  }
+  
   public final Iterator<Entity> Entities() {
     return new EntityIterator();
   }
@@ -1,39 +1,60 @@
 package widders.rhetoric;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
 import java.util.function.Predicate;
 
-import widders.util.BreadthFirstRecursionIterator;
-import widders.util.IterProtector;
 import widders.util.MultiIterator;
-import widders.util.RandomAccessLinkedHashSet;
 
 
 /**
  * Provides functionality for selecting multiple items in a given context.
  * Provides immutable sets of Active objects garnered from selection parameters.
- * 
+ *
+ * Selections are lazy: objects are pulled from the source only as they are
+ * needed, and a selection that is only checked for emptiness or iterated part
+ * way never looks at the rest. Only contains() and selections that could meet
+ * an object twice build a hash set. The contents of a Container are read a
+ * container at a time from a snapshot, so the selection can be used to move or
+ * destroy what it selects.
+ *
  * @author widders
  */
 public class Selection implements Set<Active> {
-  private static final Selection EMPTY_SELECTION = new EmptySelection();
-  
-  private RandomAccessLinkedHashSet<Active> selected;
-  
-  private Selection(boolean empty) {
-    selected = empty
-        ? null //Collections.<Active> emptySet()
-        : new RandomAccessLinkedHashSet<Active>();
-  }
-  
-  /** Creates a new instance of Selection with nothing selected */
-  private Selection() {
-    this(false);
+  private static final Selection EMPTY_SELECTION =
+      new Selection(Collections.<Active> emptyIterator(), null, 0, 0, true);
+  
+  /* Where the rest of the selection comes from; null once it is exhausted */
+  private Iterator<Active> source;
+  private final Predicate<Active> filter;
+  /* The number of matches still to be skipped */
+  private int skip;
+  /* The number of objects still to be selected, or < 1 for no limit */
+  private int max;
+  
+  /* The objects selected so far, in order */
+  private final ArrayList<Active> selected = new ArrayList<Active>();
+  /* The objects selected so far, if the source may repeat itself or
+   * contains() has been called; otherwise null */
+  private HashSet<Active> seen;
+  
+  private Selection(Iterator<Active> source, Predicate<Active> filter,
+                    int skip, int max, boolean distinct) {
+    this.source = source;
+    this.filter = filter;
+    this.skip = skip;
+    this.max = max;
+    if (!distinct)
+      seen = new HashSet<Active>();
   }
   
   /** Returns an empty selection */
@@ -43,24 +64,17 @@ public class Selection implements Set<Active> {
   
   /** Creates a new instance of Selection containing only the given object */
   public static Selection selectOnly(Active a) {
-    Selection sel = new Selection();
-    sel.selected.add(a);
-    return sel;
+    return new Selection(Collections.singleton(a).iterator(), null, 0, 0, true);
   }
   
   public static Selection selectOnly(Active[] from) {
-    Selection sel = new Selection();
-    for (Active a : from)
-      sel.selected.add(a);
-    return sel;
+    return new Selection(Arrays.asList(from).iterator(), null, 0, 0, false);
   }
   
   /** Selects all in the given container */
   public static Selection select(Iterable<Active> from, Predicate<Active> filter,
                                  int skip, int max) {
-    Selection sel = new Selection();
-    sel.selectImpl(from.iterator(), filter, skip, max);
-    return sel;
+    return new Selection(contentsOf(from), filter, skip, max, isDistinct(from));
   }
   
   public static Selection select(Iterable<Active> from, Predicate<Active> filter) {
@@ -69,10 +83,7 @@ public class Selection implements Set<Active> {
   
   public static Selection select(Iterable<Active>[] from, Predicate<Active> filter,
                                  int skip, int max) {
-    Selection sel = new Selection();
-    sel.selectImpl(MultiIterator.createFromIterables(from),
-                   filter, skip, max);
-    return sel;
+    return new Selection(contentsOf(from), filter, skip, max, false);
   }
   
   public static Selection select(Iterable<Active>[] from, Predicate<Active> filter) {
@@ -80,36 +91,27 @@ public class Selection implements Set<Active> {
   }
   
   public static Selection selectAll(Iterable<Active> from) {
-    Selection sel = new Selection();
-    sel.selectAllImpl(from.iterator());
-    return sel;
+    return select(from, null, 0, 0);
   }
   
   public static Selection selectAll(Iterable<Active>[] from) {
-    Selection sel = new Selection();
-    sel.selectAllImpl(MultiIterator.createFromIterables(from));
-    return sel;
+    return select(from, null, 0, 0);
   }
   
   public static Selection selectAllDeep(Iterable<Active> from) {
-    Selection sel = new Selection();
-    sel.selectAllImpl(new BreadthFirstRecursionIterator<Active>(from, false));
-    return sel;
+    return selectDeep(from, null, 0, 0);
   }
   
   public static Selection selectAllDeep(Iterable<Active>[] from) {
-    Selection sel = new Selection();
-    Iterator<Active> it = MultiIterator.createFromIterables(from);
-    sel.selectAllImpl(new BreadthFirstRecursionIterator<Active>(it, false));
-    return sel;
+    return selectDeep(from, null, 0, 0);
   }
   
   public static Selection selectDeep(Iterable<Active> from, Predicate<Active> filter,
                                      int skip, int max) {
-    Selection sel = new Selection();
-    sel.selectImpl(new BreadthFirstRecursionIterator<Active>(from, false),
-                   filter, skip, max);
-    return sel;
+    // the walk reads each container only when it gets there, so whatever is
+    // moved meanwhile into a container not yet walked would come up twice
+    return new Selection(new DeepIterator(contentsOf(from)),
+                         filter, skip, max, false);
   }
   
   public static Selection selectDeep(Iterable<Active> from, Predicate<Active> filter) {
@@ -118,11 +120,8 @@ public class Selection implements Set<Active> {
   
   public static Selection selectDeep(Iterable<Active>[] from, Predicate<Active> filter,
                                      int skip, int max) {
-    Selection sel = new Selection();
-    Iterator<Active> it = MultiIterator.createFromIterables(from);
-    sel.selectImpl(new BreadthFirstRecursionIterator<Active>(it, false),
-                   filter, skip, max);
-    return sel;
+    return new Selection(new DeepIterator(contentsOf(from)),
+                         filter, skip, max, false);
   }
   
   public static Selection selectDeep(Iterable<Active>[] from, Predicate<Active> filter) {
@@ -130,97 +129,213 @@ public class Selection implements Set<Active> {
   }
   
   /**
-   * Selects matching objects in the given container, skipping the first [skip]
-   * elements and selecting no more than [max] (unless [max] < 1), and
-   * returns the number selected. If no objects were selected, returns a
-   * negative value of the number of objects that remain to be skipped because
-   * of the ordinal argument.
+   * Selects objects anywhere inside [from] that are identified by every word
+   * of [phrase] and pass [filter], which may be null. Candidates come from the
+   * room's word index rather than a walk of everything in it, and are checked
+   * while [from] is tree locked, so the selection is of a single moment.
    * 
-   * Duplicate objects presented while items are still being skipped still count
-   * towards the total number of objects to skip.
+   * As with the other deep selections, shallower objects come first; objects
+   * at the same depth are ordered by age.
    */
-  private int selectImpl(Iterator<Active> from, Predicate<Active> filter, int skip, int max) {
-    int gotten = 0;
-    while (from.hasNext()) {
-      Active a = from.next();
-      if (filter.test(a)) {
-        if (skip > 0) { // still skipping
-          skip--;
-        } else { // done skipping, actually grabbing items now
-          if (selected.add(a)) {
-            max--;
-            gotten++;
-            if (max == 0)
-              return gotten; // finish
-          }
-        }
+  public static Selection selectDeep(Container from, String[] phrase,
+                                     Predicate<Active> filter,
+                                     int skip, int max) {
+    int[] words = Words.find(phrase);
+    if (words == null) // some word identifies nothing
+      return selectNone();
+    
+    ArrayList<Active> found = new ArrayList<Active>();
+    from.lockTree();
+    try {
+      Room room = roomOf(from);
+      if (room == null) // not in the world, as when destroyed
+        return selectNone();
+      for (Active a : room.index.narrowest(words)) {
+        // the index may be a moment behind, so check
+        if (a.is(words) && from.containsDeep(a))
+          found.add(a);
       }
+      found.sort(BY_DEPTH);
+    } finally {
+      from.unlockTree();
     }
     
-    if (skip > 0)
-      return -skip;
-    else
-      return gotten;
+    return new Selection(found.iterator(), filter, skip, max, true);
+  }
+  
+  public static Selection selectDeep(Container from, String... phrase) {
+    return selectDeep(from, phrase, null, 0, 0);
+  }
+  
+  /** Returns the room [c] is in, or null if it is not in one */
+  private static Room roomOf(Container c) {
+    while (!(c instanceof Room)) {
+      c = c.container();
+      if (c == null)
+        return null;
+    }
+    return (Room)c;
+  }
+  
+  private static final Comparator<Active> BY_DEPTH =
+      Comparator.<Active> comparingInt(Selection::depth)
+                .thenComparingLong(a -> a.iD);
+  
+  private static int depth(Container c) {
+    int d = 0;
+    while ((c = c.container()) != null)
+      d++;
+    return d;
+  }
+  
+  /** Whether [from] is known never to present the same object twice */
+  private static boolean isDistinct(Iterable<Active> from) {
+    return from instanceof Container || from instanceof Set;
+  }
+  
+  /** Iterates [from], reading a Container's contents from a snapshot */
+  private static Iterator<Active> contentsOf(Iterable<Active> from) {
+    return from instanceof Container
+        ? Arrays.asList(((Container)from).allContents()).iterator()
+        : from.iterator();
+  }
+  
+  private static Iterator<Active> contentsOf(Iterable<Active>[] from) {
+    return MultiIterator.createFromIterators(
+        Arrays.stream(from).map(Selection::contentsOf).iterator());
   }
   
   /**
-   * Selects matching objects in the given container, skipping the first [skip]
-   * elements and selecting no more than [max] (unless [max] < 1), and
-   * returns the number selected. If no objects were selected, returns a
-   * negative value of the number of objects that remain to be skipped because
-   * of the ordinal argument.
-   * 
+   * Iterates breadth-first through everything the source presents and
+   * everything inside it, taking a snapshot of each object's contents only
+   * when the walk gets to them.
+   */
+  private static class DeepIterator implements Iterator<Active> {
+    private Iterator<Active> level;
+    /* Objects whose contents are still to be walked */
+    private final ArrayDeque<Active> parents = new ArrayDeque<Active>();
+    
+    DeepIterator(Iterator<Active> top) {
+      level = top;
+    }
+    
+    public boolean hasNext() {
+      while (!level.hasNext()) {
+        Active parent = parents.poll();
+        if (parent == null)
+          return false;
+        level = Arrays.asList(parent.allContents()).iterator();
+      }
+      return true;
+    }
+    
+    public Active next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      Active a = level.next();
+      if (a.contentCount() > 0)
+        parents.add(a);
+      return a;
+    }
+  }
+  
+  /**
+   * Pulls the next selected object from the source, honoring the filter,
+   * skip and max; returns false if there are no more.
+   *
    * Duplicate objects presented while items are still being skipped still count
    * towards the total number of objects to skip.
    */
-  private int selectAllImpl(Iterator<Active> from) {
-    int gotten = 0;
-    while (from.hasNext()) {
-      Active a = from.next();
-      if (selected.add(a))
-        gotten++;
+  private boolean pull() {
+    if (source == null)
+      return false;
+    while (source.hasNext()) {
+      Active a = source.next();
+      if (filter == null || filter.test(a)) {
+        if (skip > 0) { // still skipping
+          skip--;
+        } else if (seen == null || seen.add(a)) {
+          selected.add(a);
+          if (--max == 0) // done, and only look no further if there was a max
+            source = null;
+          return true;
+        }
+      }
     }
-    return gotten;
+    source = null;
+    return false;
+  }
+  
+  /** Pulls everything that is left */
+  private void drain() {
+    while (pull())
+      ;
   }
   
-  public Active randomElement(Random rand) {
-    if (isEmpty())
+  public synchronized Active randomElement(Random rand) {
+    drain();
+    if (selected.isEmpty())
       throw new NoSuchElementException();
     
-    return selected.randomElement(rand);
+    return selected.get(rand.nextInt(selected.size()));
   }
   
   /** Returns the number of objects selected */
-  public int size() {
+  public synchronized int size() {
+    drain();
     return selected.size();
   }
   
   /** Returns an iterator over the selection list */
   public Iterator<Active> iterator() {
-    return new IterProtector<Active>(selected.iterator());
+    return new Iterator<Active>() {
+      int i = 0;
+      
+      public boolean hasNext() {
+        synchronized (Selection.this) {
+          return i < selected.size() || pull();
+        }
+      }
+      
+      public Active next() {
+        synchronized (Selection.this) {
+          if (!hasNext())
+            throw new NoSuchElementException();
+          return selected.get(i++);
+        }
+      }
+    };
   }
   
-  public boolean isEmpty() {
-    return selected.isEmpty();
+  public synchronized boolean isEmpty() {
+    return selected.isEmpty() && !pull();
   }
   
   
-  public boolean contains(Object o) {
-    return selected.contains(o);
+  public synchronized boolean contains(Object o) {
+    drain();
+    if (seen == null)
+      seen = new HashSet<Active>(selected);
+    return seen.contains(o);
   }
   
   
   /** Returns an array containing the selection list */
-  public Active[] toArray() {
-    return selected.toArray(new Active[size()]);
+  public synchronized Active[] toArray() {
+    drain();
+    return selected.toArray(new Active[selected.size()]);
   }
   
-  public <T> T[] toArray(T[] a) {
+  public synchronized <T> T[] toArray(T[] a) {
+    drain();
     return selected.toArray(a);
   }
   
-  public boolean containsAll(Collection<?> c) {
-    return selected.containsAll(c);
+  public synchronized boolean containsAll(Collection<?> c) {
+    for (Object o : c)
+      if (!contains(o))
+        return false;
+    return true;
   }
   
   public boolean add(Active e) {
@@ -251,56 +366,4 @@ public class Selection implements Set<Active> {
   public void clear() {
     throw new UnsupportedOperationException();
   }
-  
-  
-  private static class EmptySelection extends Selection {
-    private static final Set<Active> EMPTY = Collections.<Active> emptySet();
-    
-    EmptySelection() {
-      super(true);
-    }
-    
-    /** Returns the number of objects selected */
-    @Override
-    public int size() {
-      return 0;
-    }
-    
-    /** Returns an iterator over the selection list */
-    @Override
-    public Iterator<Active> iterator() {
-      return EMPTY.iterator();
-    }
-    
-    @Override
-    public boolean isEmpty() {
-      return true;
-    }
-    
-    @Override
-    public boolean contains(Object o) {
-      return false;
-    }
-    
-    /** Returns an array containing the selection list */
-    @Override
-    public Active[] toArray() {
-      return new Active[] {};
-    }
-    
-    @Override
-    public <T> T[] toArray(T[] a) {
-      return EMPTY.toArray(a);
-    }
-    
-    @Override
-    public boolean containsAll(Collection<?> c) {
-      return c.isEmpty();
-    }
-    
-    @Override
-    public Active randomElement(Random rand) {
-      throw new NoSuchElementException();
-    }
-  }
-}
\ No newline at end of file
+}
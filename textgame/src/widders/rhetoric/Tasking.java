@@ -1,20 +1,278 @@
 package widders.rhetoric;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+
+/**
+ * The worker pool that runs event callbacks (onAdd, onRemove, etc.) outside
+ * of the thread that caused them.
+ *
+ * Tasks queued directly run in no particular order. Tasks queued on a Lane
+ * run one at a time in the order they were queued, while different lanes
+ * run in parallel; Container gives every object its own lane. Workers steal
+ * lanes from each other, so a busy object does not hold up the rest.
+ * Tasks may be queued before the pool is started, and wait until it is.
+ *
+ * @author widders
+ */
 public class Tasking {
-  private static final LinkedBlockingQueue<Runnable> taskQueue = new LinkedBlockingQueue<Runnable>();
+  /** The most tasks a lane runs before letting other lanes have a turn */
+  public static final int LANE_BUDGET = 32;
+  
+  /** The running pool, or null when stopped */
+  private static volatile ForkJoinPool pool;
+  /** The pool being shut down, which still runs work its own tasks queue */
+  private static volatile ForkJoinPool draining;
+  /** Work submitted while the pool was stopped */
+  private static final ConcurrentLinkedQueue<Runnable> backlog = new ConcurrentLinkedQueue<Runnable>();
+  
+  /** Number of tasks waiting to run */
+  private static final AtomicInteger queued = new AtomicInteger();
+  /** Number of tasks that have finished running */
+  private static final LongAdder completed = new LongAdder();
+  /** Number of tasks that threw */
+  private static final LongAdder failed = new LongAdder();
+  /** Sum of the time tasks spent waiting to run, in nanoseconds */
+  private static final LongAdder totalLatency = new LongAdder();
+  /** Longest time a task has spent waiting to run, in nanoseconds */
+  private static final AtomicLong maxLatency = new AtomicLong();
+  /** When the metrics were last reset, for throughput */
+  private static volatile long metricsSince = System.nanoTime();
+  
+  /** A queued task, stamped with the time it was queued */
+  private static final class Entry implements Runnable {
+    final Runnable task;
+    final long queuedAt;
+    
+    Entry(Runnable task) {
+      this.task = task;
+      queued.incrementAndGet();
+      queuedAt = System.nanoTime();
+    }
+    
+    /** Runs the task; never throws */
+    @Override
+    public void run() {
+      queued.decrementAndGet();
+      long waited = System.nanoTime() - queuedAt;
+      totalLatency.add(waited);
+      long max;
+      while (waited > (max = maxLatency.get())
+          && !maxLatency.compareAndSet(max, waited));
+      try {
+        task.run();
+      } catch (Throwable ex) {
+        failed.increment();
+        ex.printStackTrace();
+      } finally {
+        completed.increment();
+      }
+    }
+  }
+  
+  /**
+   * A serial mailbox: tasks queued on the same lane run one at a time, in
+   * order. Only a lane with work in it is known to the pool, and it runs at
+   * most LANE_BUDGET tasks per turn.
+   */
+  public static final class Lane implements Runnable {
+    private final ConcurrentLinkedQueue<Entry> tasks = new ConcurrentLinkedQueue<Entry>();
+    /** Tasks in the lane plus the one running */
+    private final AtomicInteger pending = new AtomicInteger();
+    
+    public void queue(Runnable task) {
+      tasks.add(new Entry(task));
+      if (pending.getAndIncrement() == 0)
+        submit(this);
+    }
+    
+    /** The number of tasks queued or running on this lane */
+    public int pending() {
+      return pending.get();
+    }
+    
+    /** Runs one turn of this lane; called by the pool */
+    @Override
+    public void run() {
+      for (int n = 0; n < LANE_BUDGET; n++) {
+        tasks.poll().run();
+        if (pending.decrementAndGet() == 0)
+          return;
+      }
+      // more work than the budget: go to the back of the line
+      submit(this);
+    }
+  }
+  
+  /** Default thread factory for the pool: named daemon threads */
+  private static class WorkerFactory
+      implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+    
+    @Override
+    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+      ForkJoinWorkerThread t =
+          ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      t.setName("Tasking" + count.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+  
   
   public static int queueCount() {
-    return taskQueue.size();
+    return queued.get();
   }
   
+  /** Queues a task to run in no particular order */
   public static void queue(Runnable task) {
-    taskQueue.add(task);
+    submit(new Entry(task));
+  }
+  
+  private static void submit(Runnable work) {
+    ForkJoinPool p = pool, own = ForkJoinTask.getPool();
+    if (own != null && (own == p || own == draining)) {
+      // from one of our workers: its own deque, where others can steal it
+      ForkJoinTask.adapt(work).fork();
+      return;
+    }
+    if (p != null) {
+      try {
+        p.execute(work);
+        return;
+      } catch (RejectedExecutionException ex) {
+        // shutting down
+      }
+    }
+    backlog.add(work);
+    if (pool != null) flushBacklog(); // started while we were adding
+  }
+  
+  private static void flushBacklog() {
+    ForkJoinPool p = pool;
+    Runnable work;
+    while (p != null && (work = backlog.poll()) != null) {
+      try {
+        p.execute(work);
+      } catch (RejectedExecutionException ex) {
+        backlog.add(work); // stopped again; keep it for the next start
+        return;
+      }
+    }
+  }
+  
+  /**
+   * Starts the pool with one daemon worker per available processor.
+   */
+  public static void start() {
+    start(Runtime.getRuntime().availableProcessors());
+  }
+  
+  /**
+   * Starts the pool with the given number of daemon workers.
+   */
+  public static void start(int threadCount) {
+    start(threadCount, new WorkerFactory());
+  }
+  
+  /**
+   * Starts the pool with the given number of workers, created by the given
+   * factory.
+   *
+   * @throws IllegalStateException
+   *           if the pool is already running
+   */
+  public static synchronized void start(
+      int threadCount, ForkJoinPool.ForkJoinWorkerThreadFactory factory) {
+    if (threadCount < 1)
+      throw new IllegalArgumentException("Thread count must be positive");
+    if (pool != null)
+      throw new IllegalStateException("Tasking is already running");
+    // async mode: workers take their own tasks first-in first-out
+    pool = new ForkJoinPool(threadCount, factory, null, true);
+    flushBacklog();
+  }
+  
+  /** Returns true if the pool is running */
+  public static boolean running() {
+    return pool != null;
   }
   
-  private static void processTask()
+  /**
+   * Stops the pool after the tasks already queued, and the tasks they queue,
+   * have run, waiting up to timeoutMs for them. Tasks queued from other
+   * threads after this is called wait for the next start().
+   *
+   * @return
+   *         true if the pool finished in time
+   */
+  public static boolean shutdown(long timeoutMs)
       throws InterruptedException {
-    taskQueue.take().run();
+    ForkJoinPool p;
+    synchronized (Tasking.class) {
+      p = pool;
+      if (p == null) return true;
+      draining = p;
+      pool = null;
+    }
+    try {
+      p.shutdown();
+      return p.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    } finally {
+      draining = null;
+    }
+  }
+  
+  
+  //// METRICS ////
+  
+  /** The number of tasks that have finished since the last reset */
+  public static long completedCount() {
+    return completed.sum();
+  }
+  
+  /** The number of tasks that threw since the last reset */
+  public static long failedCount() {
+    return failed.sum();
+  }
+  
+  /** The number of times a worker took work queued by another worker */
+  public static long stealCount() {
+    ForkJoinPool p = pool;
+    return p == null ? 0 : p.getStealCount();
+  }
+  
+  /** Average time between queueing and running a task, in milliseconds */
+  public static double averageLatency() {
+    long n = completed.sum();
+    return n == 0 ? 0d : totalLatency.sum() / (double)n / 1e6;
+  }
+  
+  /** Longest time between queueing and running a task, in milliseconds */
+  public static double maxLatency() {
+    return maxLatency.get() / 1e6;
+  }
+  
+  /** Completed tasks per second since the last reset */
+  public static double throughput() {
+    double seconds = (System.nanoTime() - metricsSince) / 1e9;
+    return seconds <= 0 ? 0d : completed.sum() / seconds;
+  }
+  
+  /** Zeroes the metrics. Tasks running during the reset may be miscounted. */
+  public static void resetMetrics() {
+    completed.reset();
+    failed.reset();
+    totalLatency.reset();
+    maxLatency.set(0);
+    metricsSince = System.nanoTime();
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,101 @@
+package widders.rhetoric;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import widders.util.ConcurrentLongMap;
+
+
+/**
+ * An inverted index from identity and property word ids to the Active objects
+ * in a Room that have them, at any depth, along with a count of those objects
+ * by classification.
+ *
+ * Each Active keeps itself in the index of the Room it is in; see
+ * Active.reindex(). Lookups may briefly see an object that has just left the
+ * Room or miss one that has just arrived, so callers check what they find.
+ *
+ * @author widders
+ */
+final class WordIndex {
+  private final ConcurrentLongMap<Set<Active>> postings =
+      new ConcurrentLongMap<Set<Active>>(256, 16);
+  private final ConcurrentLongMap<AtomicInteger> classCounts =
+      new ConcurrentLongMap<AtomicInteger>(16, 1);
+
+  /** Adds [obj] under the given word */
+  void add(int word, Active obj) {
+    Set<Active> set = postings.get(word);
+    if (set == null) {
+      set = ConcurrentHashMap.<Active> newKeySet();
+      Set<Active> raced = postings.putIfAbsent(word, set);
+      if (raced != null) set = raced;
+    }
+    set.add(obj);
+  }
+
+  /** Removes [obj] from under the given word */
+  void remove(int word, Active obj) {
+    Set<Active> set = postings.get(word);
+    if (set != null) set.remove(obj);
+    // empty sets are kept; the same words tend to come back
+  }
+
+  void addAll(int[] words, Active obj) {
+    for (int word : words)
+      add(word, obj);
+  }
+
+  void removeAll(int[] words, Active obj) {
+    for (int word : words)
+      remove(word, obj);
+  }
+
+  /** Returns the objects indexed under the given word; do not modify */
+  Set<Active> get(int word) {
+    Set<Active> set = postings.get(word);
+    return set == null ? Collections.<Active> emptySet() : set;
+  }
+
+  /** Adds [delta] to the count of objects with the given classification */
+  void count(int classification, int delta) {
+    AtomicInteger n = classCounts.get(classification);
+    if (n == null) {
+      n = new AtomicInteger();
+      AtomicInteger raced = classCounts.putIfAbsent(classification, n);
+      if (raced != null) n = raced;
+    }
+    n.addAndGet(delta);
+  }
+
+  /** Adds [delta] to the counts of each classification in the bitset */
+  void count(long[] classifications, int delta) {
+    for (int w = 0; w < classifications.length; w++)
+      for (long bits = classifications[w]; bits != 0; bits &= bits - 1)
+        count((w << 6) + Long.numberOfTrailingZeros(bits), delta);
+  }
+
+  /** Returns the number of objects with the given classification */
+  int count(int classification) {
+    AtomicInteger n = classCounts.get(classification);
+    return n == null ? 0 : n.get();
+  }
+
+  /**
+   * Returns the smallest of the posting sets for the given words, which holds
+   * every object that could match them all
+   */
+  Set<Active> narrowest(int[] words) {
+    Set<Active> best = null;
+    for (int word : words) {
+      Set<Active> set = get(word);
+      if (best == null || set.size() < best.size()) {
+        best = set;
+        if (best.isEmpty()) break;
+      }
+    }
+    return best == null ? Collections.<Active> emptySet() : best;
+  }
+}
@@ -0,0 +1,89 @@
+package widders.rhetoric;
+
+import widders.util.Bits;
+import widders.util.Interner;
+
+
+/**
+ * The global dictionaries that Active objects are matched against. Identity
+ * and property words are lowercased and share one dictionary; classifications
+ * keep their case and have their own.
+ *
+ * A parser should look up the words of a noun phrase once with find() and
+ * match candidates with Active.is(int...), which only compares ints.
+ *
+ * @author widders
+ */
+public final class Words {
+  private static final Interner words = new Interner();
+  private static final Interner classes = new Interner();
+
+  private Words() {
+  }
+
+  /** Returns the id of a word, adding it to the dictionary if needed */
+  public static int intern(String word) {
+    return words.intern(word.toLowerCase());
+  }
+
+  /** Returns the ids of the given words, adding them if needed */
+  public static int[] intern(String... words) {
+    int[] ids = new int[words.length];
+    for (int i = 0; i < words.length; i++)
+      ids[i] = intern(words[i]);
+    return ids;
+  }
+
+  /**
+   * Returns the id of a word, or -1 if no object has ever been identified by
+   * it
+   */
+  public static int find(String word) {
+    return words.find(word.toLowerCase());
+  }
+
+  /**
+   * Returns the ids of the words of a phrase, or null if any of them is not
+   * in the dictionary, in which case nothing can match the phrase
+   */
+  public static int[] find(String... phrase) {
+    int[] ids = new int[phrase.length];
+    for (int i = 0; i < phrase.length; i++)
+      if ((ids[i] = find(phrase[i])) < 0) return null;
+    return ids;
+  }
+
+  /** Returns the word with the given id */
+  public static String word(int id) {
+    return words.get(id);
+  }
+
+  /** Returns the id of a classification, adding it if needed */
+  public static int internClass(String classification) {
+    return classes.intern(classification);
+  }
+
+  /** Returns the id of a classification, or -1 if it is not known */
+  public static int findClass(String classification) {
+    return classes.find(classification);
+  }
+
+  /**
+   * Returns a bitset of the ids of the given classifications, for
+   * Active.isClassified(long[]), or null if any of them is not known
+   */
+  public static long[] classMask(String... classifications) {
+    long[] mask = Bits.EMPTY;
+    for (String c : classifications) {
+      int id = findClass(c);
+      if (id < 0) return null;
+      mask = Bits.set(mask, id);
+    }
+    return mask;
+  }
+
+  /** Returns the classification with the given id */
+  public static String className(int id) {
+    return classes.get(id);
+  }
+}
@@ -0,0 +1,85 @@
+package widders.util;
+
+import java.util.Arrays;
+
+/**
+ * Operations on long arrays used as small immutable bitsets. As with
+ * SortedInts, changes return a new array, or the same array if nothing
+ * changed, so an array that has been shared is never modified. Arrays are
+ * kept no longer than their highest set bit needs.
+ *
+ * @author widders
+ */
+public final class Bits {
+  public static final long[] EMPTY = new long[0];
+
+  private Bits() {
+  }
+
+  /** Returns a bitset with the given bits set */
+  public static long[] of(int... bits) {
+    long[] set = EMPTY;
+    for (int b : bits)
+      set = set(set, b);
+    return set;
+  }
+
+  public static boolean get(long[] set, int bit) {
+    int w = bit >>> 6;
+    return w < set.length && (set[w] & (1L << bit)) != 0;
+  }
+
+  /** Returns true iff every bit set in [mask] is set in [set] */
+  public static boolean containsAll(long[] set, long[] mask) {
+    if (mask.length > set.length) return false;
+    for (int w = 0; w < mask.length; w++)
+      if ((set[w] & mask[w]) != mask[w]) return false;
+    return true;
+  }
+
+  /** Returns true iff any bit set in [mask] is set in [set] */
+  public static boolean containsAny(long[] set, long[] mask) {
+    int n = Math.min(set.length, mask.length);
+    for (int w = 0; w < n; w++)
+      if ((set[w] & mask[w]) != 0) return true;
+    return false;
+  }
+
+  /** Returns [set] with [bit] set */
+  public static long[] set(long[] set, int bit) {
+    if (get(set, bit)) return set;
+    int w = bit >>> 6;
+    long[] result = Arrays.copyOf(set, Math.max(set.length, w + 1));
+    result[w] |= 1L << bit;
+    return result;
+  }
+
+  /** Returns [set] with [bit] cleared */
+  public static long[] clear(long[] set, int bit) {
+    if (!get(set, bit)) return set;
+    int w = bit >>> 6;
+    long[] result = set.clone();
+    result[w] &= ~(1L << bit);
+    int n = result.length;
+    while (n > 0 && result[n - 1] == 0)
+      n--;
+    return n == 0 ? EMPTY : n == result.length ? result : Arrays.copyOf(result, n);
+  }
+
+  public static int cardinality(long[] set) {
+    int n = 0;
+    for (long word : set)
+      n += Long.bitCount(word);
+    return n;
+  }
+
+  /** Returns the indices of the set bits, in order */
+  public static int[] toArray(long[] set) {
+    int[] bits = new int[cardinality(set)];
+    int i = 0;
+    for (int w = 0; w < set.length; w++)
+      for (long word = set[w]; word != 0; word &= word - 1)
+        bits[i++] = (w << 6) + Long.numberOfTrailingZeros(word);
+    return bits;
+  }
+}
@@ -1,27 +1,78 @@
 package widders.util;
 
-import java.lang.reflect.Array;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
- * 
+ * A heap which sorts by time, returning items with the lowest time first,
+ * whose entries can be cancelled in O(log n).
+ *
+ * The heap is kept as parallel arrays of times, values, and handles rather
+ * than as node objects, and is 4-ary by default, so sifting touches fewer
+ * cache lines. Every entry has a handle that tracks its position in the heap;
+ * handles are recycled, and a generation count per handle tells a stale token
+ * from a live one. schedule() returns a token with no allocation, and add()
+ * wraps one in a Cancellable.
+ *
+ * Events with the same time have no guaranteed return order.
+ *
  * @author widders
  *
  * @param <E>
  */
-public class CancellableScheduleQueue<E> {
-  private Node[] queue;
+public class CancellableScheduleQueue<E> implements Iterable<E> {
+  // the heap
+  private long[] times;
+  private Object[] values;
+  /** The handle of the entry at each heap position */
+  private int[] heapHandles;
   private int size;
+  /** log2 of the number of children per heap node */
+  private final int arityShift;
+  
+  // the handles
+  /** Heap position of each handle's entry, or the next free handle */
+  private int[] positions;
+  /** Generation of each handle, bumped each time it is freed */
+  private int[] generations;
+  /** The Cancellable for each handle's entry, if add() made one */
+  private Ticket[] tickets;
+  /** Number of handles ever allocated */
+  private int handleCount;
+  /** First free handle, or -1 */
+  private int freeHandle = -1;
+  
+  private int modCount;
   
   private static final int DEFAULT_SIZE = 11;
+  private static final int DEFAULT_ARITY = 4;
   
   public CancellableScheduleQueue() {
     this(DEFAULT_SIZE);
   }
   
-  @SuppressWarnings("unchecked")
   public CancellableScheduleQueue(int capacity) {
-    queue = (Node[])Array.newInstance(Node.class, capacity);
+    this(capacity, DEFAULT_ARITY);
+  }
+  
+  /**
+   * @param arity
+   *          the number of children of each heap node; a power of 2
+   */
+  public CancellableScheduleQueue(int capacity, int arity) {
+    if (arity < 2 || Integer.bitCount(arity) != 1)
+      throw new IllegalArgumentException("Arity must be a power of 2: " + arity);
+    arityShift = Integer.numberOfTrailingZeros(arity);
+    capacity = Math.max(capacity, 1);
+    times = new long[capacity];
+    values = new Object[capacity];
+    heapHandles = new int[capacity];
+    positions = new int[capacity];
+    generations = new int[capacity];
+    tickets = new Ticket[capacity];
   }
   
   public int size() {
@@ -30,21 +81,94 @@ public class CancellableScheduleQueue<E> {
   
   /** Ensures the queue can hold at least [capacity] elements. */
   private void ensureCapacity(int capacity) {
-    if (queue.length >= capacity)
+    if (times.length >= capacity)
       return;
     
-    int oldCapacity = queue.length;
+    int oldCapacity = times.length;
     int newCapacity = oldCapacity + ((oldCapacity < 64)
         ? (oldCapacity + 2)
         : (oldCapacity >> 1));
-    queue = Arrays.copyOf(queue, newCapacity);
+    times = Arrays.copyOf(times, newCapacity);
+    values = Arrays.copyOf(values, newCapacity);
+    heapHandles = Arrays.copyOf(heapHandles, newCapacity);
   }
   
-  public Cancellable add(E value, long time) {
+  /** Returns a free handle, growing the handle table if needed */
+  private int allocateHandle() {
+    int handle = freeHandle;
+    if (handle >= 0) {
+      freeHandle = positions[handle];
+      return handle;
+    }
+    if (handleCount == positions.length) {
+      int newCapacity = times.length; // heap has already grown to fit
+      positions = Arrays.copyOf(positions, newCapacity);
+      generations = Arrays.copyOf(generations, newCapacity);
+      tickets = Arrays.copyOf(tickets, newCapacity);
+    }
+    return handleCount++;
+  }
+  
+  /** Retires a handle whose entry has left the heap */
+  private void freeHandle(int handle, boolean ran) {
+    Ticket t = tickets[handle];
+    if (t != null) {
+      if (ran) t.hasRun = true;
+      else t.cancelled = true;
+      tickets[handle] = null;
+    }
+    generations[handle] = (generations[handle] + 1) & Integer.MAX_VALUE;
+    positions[handle] = freeHandle;
+    freeHandle = handle;
+  }
+  
+  private static long token(int handle, int generation) {
+    return ((long)generation << 32) | handle;
+  }
+  
+  /** Returns the handle of a live token, or -1 */
+  private int liveHandle(long token) {
+    int handle = (int)token;
+    if (token < 0 || handle >= handleCount
+        || generations[handle] != (int)(token >>> 32))
+      return -1;
+    return handle;
+  }
+  
+  /**
+   * Adds [value] at [time], returning a token that can be passed to
+   * cancel() until the entry is polled or removed.
+   */
+  public long schedule(E value, long time) {
     ensureCapacity(size + 1);
-    Node n = new Node(value, time);
-    siftTowardsRoot(size++, n);
-    return n;
+    int handle = allocateHandle();
+    siftTowardsRoot(size++, time, value, handle);
+    modCount++;
+    return token(handle, generations[handle]);
+  }
+  
+  public Cancellable add(E value, long time) {
+    long token = schedule(value, time);
+    Ticket t = new Ticket(this, token);
+    tickets[(int)token] = t;
+    return t;
+  }
+  
+  /**
+   * Removes the entry with the given token.
+   * Returns true iff the entry was still in the queue.
+   */
+  public boolean cancel(long token) {
+    int handle = liveHandle(token);
+    if (handle < 0) return false;
+    removeAt(positions[handle]);
+    freeHandle(handle, false);
+    return true;
+  }
+  
+  /** Returns true iff the entry with the given token is still in the queue */
+  public boolean isScheduled(long token) {
+    return liveHandle(token) >= 0;
   }
   
   /**
@@ -54,132 +178,173 @@ public class CancellableScheduleQueue<E> {
    */
   public boolean remove(E value) {
     for (int i = 0; i < size; i++) {
-      if (queue[i].value.equals(value)) {
-        removeAt(i).cancelled = true;
+      if (values[i].equals(value)) {
+        int handle = heapHandles[i];
+        removeAt(i);
+        freeHandle(handle, false);
         return true;
       }
     }
     return false;
   }
   
+  @SuppressWarnings("unchecked")
   public E peek() {
     if (size == 0) return null;
-    return queue[0].value;
+    return (E)values[0];
   }
   
   public long peekTime() {
     if (size == 0) return Long.MAX_VALUE;
-    return queue[0].time;
+    return times[0];
   }
   
+  @SuppressWarnings("unchecked")
   public E poll() {
     if (size == 0) return null;
-    size--;
-    Node result = queue[0];
-    
-    // grab last element in queue and sift it out from the root
-    Node pullDown = queue[size];
-    queue[size] = null;
-    if (size > 0) // no need to do anything if it's empty now
-      siftTowardsLeaf(0, pullDown);
-    
-    result.hasRun = true;
-    return result.value;
+    E result = (E)values[0];
+    int handle = heapHandles[0];
+    removeAt(0);
+    freeHandle(handle, true);
+    return result;
+  }
+  
+  /**
+   * Polls every entry whose time is at or before [time] into [into], in
+   * order of time.
+   *
+   * @return
+   *         the number of entries polled
+   */
+  public int pollUntil(long time, Collection<? super E> into) {
+    int count = 0;
+    while (size > 0 && times[0] <= time) {
+      into.add(poll());
+      count++;
+    }
+    return count;
   }
   
   /** Returns true iff this queue contains an element that equals [value]. */
   public boolean contains(E value) {
-    for (Node n : queue) {
-      if (n.value.equals(value)) return true;
+    for (int i = 0; i < size; i++) {
+      if (values[i].equals(value)) return true;
     }
     return false;
   }
   
+  /** Iterates over the values in no particular order */
+  @Override
+  public Iterator<E> iterator() {
+    return new Iterator<E>() {
+      int index = 0;
+      final int expectedModCount = modCount;
+      
+      @Override
+      public boolean hasNext() {
+        return index < size;
+      }
+      
+      @Override
+      @SuppressWarnings("unchecked")
+      public E next() {
+        if (modCount != expectedModCount)
+          throw new ConcurrentModificationException();
+        if (index >= size)
+          throw new NoSuchElementException();
+        return (E)values[index++];
+      }
+    };
+  }
+  
+  /** Puts an entry at [index] and points its handle there */
+  private void place(int index, long time, Object value, int handle) {
+    times[index] = time;
+    values[index] = value;
+    heapHandles[index] = handle;
+    positions[handle] = index;
+  }
+  
   /**
-   * Sifts the element [key] towards the root of the queue, starting at and
+   * Sifts the given entry towards the root of the queue, starting at and
    * replacing the element at [index].
    */
-  private void siftTowardsRoot(int index, Node insert) {
+  private void siftTowardsRoot(int index, long time, Object value, int handle) {
     while (index > 0) { // stop traversing at the root
-      int parentIndex = (index - 1) >>> 1;
-      Node parent = queue[parentIndex];
-      if (insert.time >= parent.time)
+      int parent = (index - 1) >>> arityShift;
+      if (time >= times[parent])
         break; // done sifting, parent has priority
       
-      // bump parent up the tree to the child position we are visiting
-      queue[index] = parent;
-      parent.index = index;
+      // bump parent down to the child position we are visiting
+      place(index, times[parent], values[parent], heapHandles[parent]);
       
-      index = parentIndex;
+      index = parent;
     } // upon break, index contains insertion location
-    queue[index] = insert;
-    insert.index = index;
+    place(index, time, value, handle);
   }
   
   /**
-   * Sifts the element [key] towards the leaves of the queue, starting at and
+   * Sifts the given entry towards the leaves of the queue, starting at and
    * replacing the element at [index].
    */
-  private void siftTowardsLeaf(int index, Node insert) {
-    int half = size >>> 1;
-    while (index < half) { // stop traversing at a leaf
+  private void siftTowardsLeaf(int index, long time, Object value, int handle) {
+    while (true) {
+      int first = (index << arityShift) + 1;
+      if (first >= size) break; // stop traversing at a leaf
       
-      // get children's indices
-      int childIndex = (index << 1) + 1;
-      Node child = queue[childIndex];
-      int rightIndex = childIndex + 1;
-      if (rightIndex < size && //don't go out of bounds
-          child.time > queue[rightIndex].time) {
-        child = queue[childIndex = rightIndex]; // index points to priority child
+      // find the child with priority
+      int last = Math.min(first + (1 << arityShift), size);
+      int child = first;
+      long childTime = times[first];
+      for (int i = first + 1; i < last; i++) {
+        if (times[i] < childTime) {
+          childTime = times[i];
+          child = i;
+        }
       }
       
-      if (insert.time <= child.time)
+      if (time <= childTime)
         break; // stop traversing when key is higher priority than the children
       
-      // bump child down the tree to the parent position we are visiting
-      queue[index] = child;
-      child.index = index;
+      // bump child up to the parent position we are visiting
+      place(index, childTime, values[child], heapHandles[child]);
       
-      index = childIndex;
+      index = child;
     }
-    queue[index] = insert;
-    insert.index = index;
+    place(index, time, value, handle);
   }
   
-  /** Removes the element at [index] from the queue, then returns it. */
-  private Node removeAt(int index) {
-    Node ret = queue[index];
-    
+  /** Removes the element at [index] from the heap. */
+  private void removeAt(int index) {
+    modCount++;
     size--;
     if (index == size) {
-      queue[index] = null;
+      values[index] = null;
     } else {
       // grab last element in queue
-      Node pullDown = queue[size];
-      queue[size] = null;
+      long time = times[size];
+      Object value = values[size];
+      int handle = heapHandles[size];
+      values[size] = null;
       // sift it outwards leaves...
-      siftTowardsLeaf(index, pullDown);
+      siftTowardsLeaf(index, time, value, handle);
       // and then, if it didn't move, back towards the root
-      if (queue[index] == pullDown)
-        siftTowardsRoot(index, pullDown);
+      if (positions[handle] == index)
+        siftTowardsRoot(index, time, value, handle);
     }
-    
-    ret.index = -1; // has been removed from queue, break the index
-    return ret;
   }
   
   
   
-  private class Node implements Cancellable {
+  private static class Ticket implements Cancellable {
     boolean hasRun = false;
     boolean cancelled = false;
-    long time;
-    E value;
-    int index;
+    final CancellableScheduleQueue<?> queue;
+    final long token;
     
-    Node(E value, long time) {
-      this.value = value;
-      this.time = time;
+    Ticket(CancellableScheduleQueue<?> queue, long token) {
+      this.queue = queue;
+      this.token = token;
     }
     
     @Override
@@ -196,8 +361,7 @@ public class CancellableScheduleQueue<E> {
     public boolean cancel() {
       if (cancelled) return true;
       if (hasRun) return false;
-      removeAt(index);
-      return (cancelled = true);
+      return queue.cancel(token);
     }
   }
-}
\ No newline at end of file
+}
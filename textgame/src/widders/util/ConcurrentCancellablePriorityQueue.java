@@ -0,0 +1,147 @@
+package widders.util;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe counterpart to CancellablePriorityQueue, without a global
+ * lock: entries live in a concurrent skip list, and add(), poll(), and
+ * Cancellable.cancel() may be called from any thread at once.
+ *
+ * Each entry's fate is settled by a single compare-and-set on its state, so
+ * an entry is either returned by exactly one poll() or cancelled, never both.
+ * Equal elements are returned in the order they were added.
+ *
+ * @author widders
+ *
+ * @param <E>
+ */
+public class ConcurrentCancellablePriorityQueue<E> {
+  private static final int PENDING = 0, RUN = 1, CANCELLED = 2;
+
+  @SuppressWarnings("rawtypes")
+  private static final AtomicIntegerFieldUpdater<ConcurrentCancellablePriorityQueue.Node> STATE =
+      AtomicIntegerFieldUpdater.newUpdater(ConcurrentCancellablePriorityQueue.Node.class, "state");
+
+  private final ConcurrentSkipListSet<Node> queue;
+  private final Comparator<? super E> comparator;
+  /** Orders equal elements, and keeps every node distinct in the set */
+  private final AtomicLong nextSeq = new AtomicLong();
+  /** Number of pending entries */
+  private final AtomicInteger size = new AtomicInteger();
+
+  public ConcurrentCancellablePriorityQueue() {
+    this(null);
+  }
+
+  public ConcurrentCancellablePriorityQueue(Comparator<? super E> comparator) {
+    this.comparator = comparator;
+    queue = new ConcurrentSkipListSet<Node>(this::compareNodes);
+  }
+
+  @SuppressWarnings("unchecked")
+  private int compareNodes(Node a, Node b) {
+    int c = comparator == null
+        ? ((Comparable<? super E>)a.value).compareTo(b.value)
+        : comparator.compare(a.value, b.value);
+    return c != 0 ? c : Long.compare(a.seq, b.seq);
+  }
+
+  /** The number of pending entries; exact only when the queue is quiet */
+  public int size() {
+    return size.get();
+  }
+
+  public void add(E value) {
+    addCancellable(value);
+  }
+
+  public Cancellable addCancellable(E value) {
+    if (value == null) throw new NullPointerException();
+    Node n = new Node(value, nextSeq.getAndIncrement());
+    size.incrementAndGet();
+    queue.add(n);
+    return n;
+  }
+
+  /**
+   * Removes an arbitrary element whose value is equal to [value], cancelling
+   * that entry's Cancellable.
+   * Returns true if an element was removed.
+   */
+  public boolean remove(E value) {
+    for (Node n : queue) {
+      if (n.value.equals(value) && n.settle(CANCELLED)) {
+        queue.remove(n);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public E peek() {
+    for (Node n : queue) {
+      if (n.state == PENDING) return n.value;
+    }
+    return null;
+  }
+
+  public E poll() {
+    Node n;
+    while ((n = queue.pollFirst()) != null) {
+      // lost to cancel() if it got there first; it removes the node itself
+      if (n.settle(RUN)) return n.value;
+    }
+    return null;
+  }
+
+  /** Returns true iff this queue contains a pending element equal to [value]. */
+  public boolean contains(E value) {
+    for (Node n : queue) {
+      if (n.state == PENDING && n.value.equals(value)) return true;
+    }
+    return false;
+  }
+
+
+
+  private class Node implements Cancellable {
+    volatile int state = PENDING;
+    final E value;
+    final long seq;
+
+    Node(E value, long seq) {
+      this.value = value;
+      this.seq = seq;
+    }
+
+    /** Moves from pending to the given state; true if this call did it */
+    boolean settle(int newState) {
+      if (!STATE.compareAndSet(this, PENDING, newState)) return false;
+      size.decrementAndGet();
+      return true;
+    }
+
+    @Override
+    public boolean hasRun() {
+      return state == RUN;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return state == CANCELLED;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (settle(CANCELLED)) {
+        queue.remove(this);
+        return true;
+      }
+      return state == CANCELLED;
+    }
+  }
+}
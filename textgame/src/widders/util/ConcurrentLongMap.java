@@ -0,0 +1,286 @@
+package widders.util;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A concurrent map from primitive long keys to values, with no boxing and no
+ * node per entry.
+ *
+ * The map is split into segments by hash. Each segment is an open addressing
+ * table of parallel long[] keys and Object[] values with linear probing, and
+ * removals shift later entries back instead of leaving tombstones. Writers
+ * lock their segment; readers do not lock at all unless a writer changed the
+ * segment while they were reading it, so lookups scale with readers.
+ *
+ * At most 2/3 of each table is used, for roughly 18 to 36 bytes per entry
+ * with compressed references. Null values are not allowed.
+ *
+ * @author widders
+ *
+ * @param <V>
+ */
+public class ConcurrentLongMap<V> {
+  private static final int DEFAULT_SEGMENTS = 64;
+  private static final int MIN_SEGMENT_CAPACITY = 16;
+
+  private final Segment[] segments;
+  private final int segmentShift;
+
+  public ConcurrentLongMap() {
+    this(DEFAULT_SEGMENTS * MIN_SEGMENT_CAPACITY);
+  }
+
+  /**
+   * @param expected
+   *          the number of entries the map should hold without resizing
+   */
+  public ConcurrentLongMap(int expected) {
+    this(expected, DEFAULT_SEGMENTS);
+  }
+
+  /**
+   * @param expected
+   *          the number of entries the map should hold without resizing
+   * @param segmentCount
+   *          the number of independently locked segments; a power of 2
+   */
+  public ConcurrentLongMap(int expected, int segmentCount) {
+    if (segmentCount < 1 || Integer.bitCount(segmentCount) != 1)
+      throw new IllegalArgumentException(
+          "Segment count must be a power of 2: " + segmentCount);
+    segments = new Segment[segmentCount];
+    segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+    long perSegment = (long)Math.max(expected, 0) / segmentCount + 1;
+    int capacity = tableSizeFor(perSegment * 3 / 2 + 1);
+    for (int i = 0; i < segmentCount; i++)
+      segments[i] = new Segment(capacity);
+  }
+
+  private static int tableSizeFor(long n) {
+    if (n >= 1 << 30) return 1 << 30;
+    return Math.max(MIN_SEGMENT_CAPACITY, Integer.highestOneBit((int)n - 1) << 1);
+  }
+
+  /** Scrambles sequential keys across segments and slots */
+  private static long hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  private Segment segmentFor(long hash) {
+    // high bits pick the segment, low bits the slot
+    return segments.length == 1 ? segments[0] : segments[(int)(hash >>> segmentShift)];
+  }
+
+  /** Returns the value for [key], or null */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    long h = hash(key);
+    return (V)segmentFor(h).get(key, (int)h);
+  }
+
+  public boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  /** Maps [key] to [value], returning the previous value or null */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) throw new NullPointerException();
+    long h = hash(key);
+    return (V)segmentFor(h).put(key, (int)h, value, false);
+  }
+
+  /** Maps [key] to [value] unless it has a value, which is returned */
+  @SuppressWarnings("unchecked")
+  public V putIfAbsent(long key, V value) {
+    if (value == null) throw new NullPointerException();
+    long h = hash(key);
+    return (V)segmentFor(h).put(key, (int)h, value, true);
+  }
+
+  /** Removes the mapping for [key], returning its value or null */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    long h = hash(key);
+    return (V)segmentFor(h).remove(key, (int)h, null);
+  }
+
+  /** Removes the mapping for [key] only if it maps to [value] */
+  public boolean remove(long key, V value) {
+    if (value == null) return false;
+    long h = hash(key);
+    return segmentFor(h).remove(key, (int)h, value) != null;
+  }
+
+  /** The number of entries; exact only when the map is quiet */
+  public int size() {
+    long total = 0;
+    for (Segment s : segments)
+      total += s.count;
+    return (int)Math.min(total, Integer.MAX_VALUE);
+  }
+
+  public boolean isEmpty() {
+    for (Segment s : segments)
+      if (s.count != 0) return false;
+    return true;
+  }
+
+  public void clear() {
+    for (Segment s : segments)
+      s.clear();
+  }
+
+
+
+  private static final class Segment {
+    /** Writers hold the write lock; readers validate an optimistic stamp */
+    final StampedLock lock = new StampedLock();
+    long[] keys;
+    /** null marks an empty slot */
+    Object[] values;
+    volatile int count;
+    int threshold;
+
+    Segment(int capacity) {
+      keys = new long[capacity];
+      values = new Object[capacity];
+      threshold = capacity / 3 * 2;
+    }
+
+    Object get(long key, int hash) {
+      long stamp = lock.tryOptimisticRead();
+      if (stamp != 0) {
+        Object found = find(key, hash);
+        if (lock.validate(stamp))
+          return found;
+      }
+      stamp = lock.readLock();
+      try {
+        return find(key, hash);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    /**
+     * Probes for [key]. Under an optimistic read this may see a table that is
+     * being changed, so it must not fail or loop forever in that case.
+     */
+    private Object find(long key, int hash) {
+      long[] keys = this.keys;
+      Object[] values = this.values;
+      int mask = Math.min(keys.length, values.length) - 1;
+      int i = hash & mask;
+      for (int probes = 0; probes <= mask; probes++) {
+        Object v = values[i];
+        if (v == null) return null;
+        if (keys[i] == key) return v;
+        i = (i + 1) & mask;
+      }
+      return null;
+    }
+
+    Object put(long key, int hash, Object value, boolean onlyIfAbsent) {
+      long stamp = lock.writeLock();
+      try {
+        int mask = keys.length - 1;
+        int i = hash & mask;
+        Object v;
+        while ((v = values[i]) != null) {
+          if (keys[i] == key) {
+            if (!onlyIfAbsent) values[i] = value;
+            return v;
+          }
+          i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++count > threshold) grow();
+        return null;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    Object remove(long key, int hash, Object expected) {
+      long stamp = lock.writeLock();
+      try {
+        int mask = keys.length - 1;
+        int i = hash & mask;
+        Object v;
+        while ((v = values[i]) != null) {
+          if (keys[i] == key) {
+            if (expected != null && expected != v) return null;
+            shiftBack(i);
+            count--;
+            return v;
+          }
+          i = (i + 1) & mask;
+        }
+        return null;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    /** Empties slot [gap], moving back later entries of its probe run */
+    private void shiftBack(int gap) {
+      int mask = keys.length - 1;
+      int i = gap;
+      while (true) {
+        i = (i + 1) & mask;
+        Object v = values[i];
+        if (v == null) break;
+        int home = (int)hash(keys[i]) & mask;
+        // move it back if its home is not cyclically within (gap, i]
+        if (((i - home) & mask) >= ((i - gap) & mask)) {
+          keys[gap] = keys[i];
+          values[gap] = v;
+          gap = i;
+        }
+      }
+      values[gap] = null;
+    }
+
+    /** Doubles the table; called with the write lock held */
+    private void grow() {
+      long[] oldKeys = keys;
+      Object[] oldValues = values;
+      int capacity = oldKeys.length << 1;
+      if (capacity <= 0)
+        throw new IllegalStateException("ConcurrentLongMap segment is full");
+      long[] newKeys = new long[capacity];
+      Object[] newValues = new Object[capacity];
+      int mask = capacity - 1;
+      for (int j = 0; j < oldKeys.length; j++) {
+        Object v = oldValues[j];
+        if (v == null) continue;
+        int i = (int)hash(oldKeys[j]) & mask;
+        while (newValues[i] != null)
+          i = (i + 1) & mask;
+        newKeys[i] = oldKeys[j];
+        newValues[i] = v;
+      }
+      keys = newKeys;
+      values = newValues;
+      threshold = capacity / 3 * 2;
+    }
+
+    void clear() {
+      long stamp = lock.writeLock();
+      try {
+        Arrays.fill(values, null);
+        count = 0;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package widders.util;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * One node's lock in a multi-granularity locking scheme over a tree. Shared (S)
+ * and exclusive (X) cover the node and everything under it; intention-shared
+ * (IS) and intention-exclusive (IX) are taken on the nodes above by whoever
+ * holds S or X further down, so that nobody locks a whole subtree out from
+ * under them.
+ *
+ * IS may be held alongside anything but X, IX alongside IS and IX, S alongside
+ * IS and S, and X alongside nothing. Holders are only counted, so the lock is
+ * not reentrant except as far as a mode is compatible with itself. The only
+ * fairness is that lockBehindWriters() lets threads waiting for IX or X go
+ * first. Locking and unlocking without contention is a single compare-and-set.
+ *
+ * @author widders
+ */
+public final class IntentionLock {
+  public enum Mode { IS, IX, S, X }
+
+  /* The state packs a count of holders for each mode, 20 bits apiece */
+  private static final int BITS = 20;
+  private static final long FIELD = (1L << BITS) - 1;
+  private static final long[] ONE = { 1L, 1L << BITS, 1L << 2 * BITS,
+                                      1L << 3 * BITS };
+  private static final long[] HELD = { FIELD, FIELD << BITS,
+                                       FIELD << 2 * BITS, FIELD << 3 * BITS };
+  /* The holders that keep each mode from being granted */
+  private static final long[] CONFLICTS = {
+    HELD[3],                     // IS
+    HELD[2] | HELD[3],           // IX
+    HELD[1] | HELD[3],           // S
+    ~0L                          // X
+  };
+
+  private static final AtomicLongFieldUpdater<IntentionLock> STATE =
+      AtomicLongFieldUpdater.newUpdater(IntentionLock.class, "state");
+
+  private volatile long state;
+  /* Threads blocked waiting, and those of them waiting for IX or X; changed
+   * only while synchronized */
+  private volatile int waiters;
+  private volatile int writersWaiting;
+
+  /** Takes the lock in the given mode if that can be done without waiting */
+  public boolean tryLock(Mode mode) {
+    int m = mode.ordinal();
+    long s;
+    do {
+      s = state;
+      if ((s & CONFLICTS[m]) != 0)
+        return false;
+    } while (!STATE.compareAndSet(this, s, s + ONE[m]));
+    return true;
+  }
+
+  /** Takes the lock in the given mode, waiting until it is compatible */
+  public void lock(Mode mode) {
+    if (tryLock(mode))
+      return;
+    boolean writer = mode == Mode.IX || mode == Mode.X;
+    synchronized (this) {
+      waiters++;
+      if (writer)
+        writersWaiting++;
+      try {
+        // unlock() reads waiters after it releases, so either this sees the
+        // release or the release sees this waiting
+        while (!tryLock(mode))
+          wait();
+      } catch (InterruptedException ex) {
+        throw new Error("Interrupted waiting for a " + mode + " lock", ex);
+      } finally {
+        waiters--;
+        if (writer && --writersWaiting == 0)
+          notifyAll();
+      }
+    }
+  }
+  
+  /**
+   * Takes the lock in the given mode as lock() does, but first waits for any
+   * threads waiting for IX or X, so that a stream of readers cannot keep them
+   * out. The caller must not hold anything those threads could be waiting
+   * for.
+   */
+  public void lockBehindWriters(Mode mode) {
+    if (writersWaiting == 0 && tryLock(mode))
+      return;
+    synchronized (this) {
+      waiters++;
+      try {
+        while (writersWaiting != 0 || !tryLock(mode))
+          wait();
+      } catch (InterruptedException ex) {
+        throw new Error("Interrupted waiting for a " + mode + " lock", ex);
+      } finally {
+        waiters--;
+      }
+    }
+  }
+
+  public void unlock(Mode mode) {
+    int m = mode.ordinal();
+    long s;
+    do {
+      s = state;
+      if ((s & HELD[m]) == 0)
+        throw new IllegalMonitorStateException(mode + " lock is not held");
+    } while (!STATE.compareAndSet(this, s, s - ONE[m]));
+    if (waiters != 0) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  /** Returns the number of holders of the given mode */
+  public int holders(Mode mode) {
+    int m = mode.ordinal();
+    return (int)((state & HELD[m]) >>> m * BITS);
+  }
+
+  @Override
+  public String toString() {
+    return "IntentionLock[IS=" + holders(Mode.IS) + " IX=" + holders(Mode.IX)
+        + " S=" + holders(Mode.S) + " X=" + holders(Mode.X) + "]";
+  }
+}
@@ -0,0 +1,54 @@
+package widders.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns each distinct String a small int, counting up from 0, and maps it
+ * back. Ids are never reused. Looking up a String that has already been
+ * interned does not lock or allocate.
+ *
+ * @author widders
+ */
+public class Interner {
+  private final ConcurrentHashMap<String, Integer> ids =
+      new ConcurrentHashMap<String, Integer>();
+  /** The Strings by id; replaced, never changed in place, when it grows */
+  private volatile String[] strings = new String[64];
+  private int count = 0;
+
+  /** Returns the id for [s], assigning the next one if it has none */
+  public int intern(String s) {
+    Integer id = ids.get(s);
+    if (id != null) return id;
+    synchronized (this) {
+      id = ids.get(s);
+      if (id != null) return id;
+      int next = count;
+      String[] all = strings;
+      if (next == all.length)
+        all = Arrays.copyOf(all, all.length * 2);
+      all[next] = s;
+      strings = all; // publish before the id can be seen
+      ids.put(s, next);
+      count = next + 1;
+      return next;
+    }
+  }
+
+  /** Returns the id for [s], or -1 if it has never been interned */
+  public int find(String s) {
+    Integer id = ids.get(s);
+    return id == null ? -1 : id;
+  }
+
+  /** Returns the String with the given id */
+  public String get(int id) {
+    return strings[id];
+  }
+
+  /** The number of Strings interned */
+  public int size() {
+    return ids.size();
+  }
+}
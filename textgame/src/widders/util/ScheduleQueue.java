@@ -1,7 +1,7 @@
 package widders.util;
 
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.PriorityQueue;
 
 /**
  * Acts as a heap which sorts by time, returning items with the lowest time
@@ -11,14 +11,14 @@ import java.util.PriorityQueue;
  * @author widders
  */
 public class ScheduleQueue<E> implements Iterable<E> {
-  private PriorityQueue<Node<E>> queue;
+  private CancellableScheduleQueue<E> queue;
   
   ScheduleQueue() {
-    queue = new PriorityQueue<Node<E>>();
+    queue = new CancellableScheduleQueue<E>();
   }
   
   ScheduleQueue(int initialSize) {
-    queue = new PriorityQueue<Node<E>>(initialSize);
+    queue = new CancellableScheduleQueue<E>(initialSize);
   }
   
   /** Returns the number of items in the heap */
@@ -28,7 +28,7 @@ public class ScheduleQueue<E> implements Iterable<E> {
   
   /** Adds the given value to the heap with the given time */
   public void add(long time, E value) {
-    queue.add(new Node<E>(time, value));
+    queue.schedule(value, time);
   }
   
   /**
@@ -36,8 +36,7 @@ public class ScheduleQueue<E> implements Iterable<E> {
    * Long.MAX_VALUE if there is no event pending
    */
   public long peekTime() {
-    Node<E> peek = queue.peek();
-    return peek == null ? Long.MAX_VALUE : peek.time;
+    return queue.peekTime();
   }
   
   /**
@@ -45,8 +44,7 @@ public class ScheduleQueue<E> implements Iterable<E> {
    * there is no event pending
    */
   public E peek() {
-    Node<E> peek = queue.peek();
-    return peek == null ? null : peek.value;
+    return queue.peek();
   }
   
   /**
@@ -54,36 +52,24 @@ public class ScheduleQueue<E> implements Iterable<E> {
    * pending
    */
   public E pop() {
-    Node<E> poll = queue.poll();
-    return poll == null ? null : poll.value;
+    return queue.poll();
+  }
+  
+  /**
+   * Dequeues every event whose time is at or before [time] into [into], in
+   * order of time; returns the number of events dequeued
+   */
+  public int popUntil(long time, Collection<? super E> into) {
+    return queue.pollUntil(time, into);
   }
   
   @Override
   public Iterator<E> iterator() {
+    final Iterator<E> it = queue.iterator();
     return new Iterator<E>() {
-      Iterator<Node<E>> it = queue.iterator();
       public boolean hasNext() { return it.hasNext(); }
-      public E next() { return it.next().value; }
+      public E next() { return it.next(); }
       public void remove() { throw new UnsupportedOperationException(); }
     };
   }
-  
-  
-  
-  private static class Node<E> implements Comparable<Node<E>> {
-    long time;
-    E value;
-    
-    Node(long t, E v) {
-      time = t;
-      value = v;
-    }
-    
-    @Override
-    public int compareTo(Node<E> o) {
-      if (time < o.time) return -1;
-      if (time == o.time) return 0;
-      return 1;
-    }
-  }
 }
\ No newline at end of file
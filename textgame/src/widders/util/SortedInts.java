@@ -0,0 +1,74 @@
+package widders.util;
+
+import java.util.Arrays;
+
+/**
+ * Operations on sorted int arrays used as small immutable sets. Changes
+ * return a new array, or the same array if nothing changed, so an array that
+ * has been shared is never modified.
+ *
+ * @author widders
+ */
+public final class SortedInts {
+  public static final int[] EMPTY = new int[0];
+
+  private SortedInts() {
+  }
+
+  /** Returns a sorted copy of [values] without duplicates */
+  public static int[] of(int... values) {
+    if (values == null || values.length == 0) return EMPTY;
+    int[] sorted = values.clone();
+    Arrays.sort(sorted);
+    int n = 1;
+    for (int i = 1; i < sorted.length; i++)
+      if (sorted[i] != sorted[n - 1]) sorted[n++] = sorted[i];
+    return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+  }
+
+  public static boolean contains(int[] set, int value) {
+    if (set.length <= 8) { // short sets are faster to scan
+      for (int v : set)
+        if (v >= value) return v == value;
+      return false;
+    }
+    return Arrays.binarySearch(set, value) >= 0;
+  }
+
+  /** Returns true iff [set] contains every value in [values] */
+  public static boolean containsAll(int[] set, int[] values) {
+    for (int v : values)
+      if (!contains(set, v)) return false;
+    return true;
+  }
+
+  /** Returns [set] with [value] added */
+  public static int[] add(int[] set, int value) {
+    int i = Arrays.binarySearch(set, value);
+    if (i >= 0) return set;
+    i = -i - 1;
+    int[] result = new int[set.length + 1];
+    System.arraycopy(set, 0, result, 0, i);
+    result[i] = value;
+    System.arraycopy(set, i, result, i + 1, set.length - i);
+    return result;
+  }
+
+  /** Returns [set] with every value in [values] added */
+  public static int[] addAll(int[] set, int[] values) {
+    for (int v : values)
+      set = add(set, v);
+    return set;
+  }
+
+  /** Returns [set] with [value] removed */
+  public static int[] remove(int[] set, int value) {
+    int i = Arrays.binarySearch(set, value);
+    if (i < 0) return set;
+    if (set.length == 1) return EMPTY;
+    int[] result = new int[set.length - 1];
+    System.arraycopy(set, 0, result, 0, i);
+    System.arraycopy(set, i + 1, result, i, set.length - i - 1);
+    return result;
+  }
+}
@@ -0,0 +1,281 @@
+package widders.util;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * A hierarchical timing wheel: schedules values to come due at a time in
+ * milliseconds, with constant time insertion and cancellation. Time is cut
+ * into ticks of a fixed length; a value never comes due before its time, and
+ * at most one tick after it.
+ *
+ * The wheel has LEVELS levels of SLOTS slots. A value due within the current
+ * rotation of the lowest level is put in that level's slot for its tick; later
+ * values go in a coarser slot higher up, and move down a level each time the
+ * wheel turns over to that slot. Everything due in a tick is expired together,
+ * in order of time and then of scheduling.
+ *
+ * The wheel is thread safe; all operations lock the wheel.
+ *
+ * @author widders
+ *
+ * @param <E>
+ */
+public class TimingWheel<E> {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+  private static final int LEVELS = (63 + SLOT_BITS - 1) / SLOT_BITS;
+
+  /** The length of a tick in milliseconds */
+  private final long tickLength;
+  /** The time of tick 0 */
+  private final long origin;
+  /** The last tick that has been expired */
+  private long currentTick;
+  /** Heads of the slots' lists, level by level */
+  private final Node[] slots;
+  /** Which slots of each level are occupied */
+  private final long[] occupied = new long[LEVELS];
+  private int size;
+  /** Scheduling order, to break ties between values due at the same time */
+  private long nextSeq = 0;
+  /** Holds one tick's values while they are sorted */
+  private final ArrayList<Node> batch = new ArrayList<Node>();
+
+  private final Comparator<Node> dueOrder = new Comparator<Node>() {
+    @Override
+    public int compare(Node a, Node b) {
+      int c = Long.compare(a.time, b.time);
+      return c != 0 ? c : Long.compare(a.seq, b.seq);
+    }
+  };
+
+  /**
+   * @param tickLength
+   *          length of a tick in milliseconds
+   * @param now
+   *          the current time
+   */
+  @SuppressWarnings("unchecked")
+  public TimingWheel(long tickLength, long now) {
+    if (tickLength < 1)
+      throw new IllegalArgumentException("Tick length must be positive");
+    this.tickLength = tickLength;
+    this.origin = now;
+    currentTick = 0;
+    slots = (Node[])Array.newInstance(Node.class, LEVELS * SLOTS);
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public long tickLength() {
+    return tickLength;
+  }
+
+  /** The time up to which values have been expired */
+  public synchronized long currentTime() {
+    return origin + currentTick * tickLength;
+  }
+
+  /**
+   * Schedules [value] to come due at [time]. Times that have already passed
+   * come due on the next call to expire().
+   */
+  public synchronized Cancellable add(E value, long time) {
+    long offset = time - origin;
+    // round up, so nothing comes due early
+    long tick = offset <= 0 ? 0 : (offset - 1) / tickLength + 1;
+    Node n = new Node(value, time, Math.max(tick, currentTick + 1), nextSeq++);
+    insert(n);
+    size++;
+    return n;
+  }
+
+  /**
+   * Removes every value due at or before [now] from the wheel and adds it to
+   * [into], in order of the tick it was due in. Values due in the same tick
+   * are added in order of their time, then in the order they were scheduled.
+   *
+   * @return
+   *         the number of values added
+   */
+  public synchronized int expire(long now, Collection<? super E> into) {
+    return expire(now, into, false);
+  }
+
+  /**
+   * Like expire(), but stops after the first tick that has anything due.
+   * currentTime() is then the time of that tick.
+   */
+  public synchronized int expireNext(long now, Collection<? super E> into) {
+    return expire(now, into, true);
+  }
+
+  private int expire(long now, Collection<? super E> into, boolean oneTick) {
+    long target = (now - origin) / tickLength;
+    int count = 0;
+    while (currentTick < target) {
+      if (size == 0) {
+        currentTick = target;
+        break;
+      }
+      if (occupied[0] == 0) {
+        // nothing can come due before the next turnover of level 1
+        long skip = Math.min(target, currentTick | SLOT_MASK);
+        if (skip > currentTick) {
+          currentTick = skip;
+          continue;
+        }
+      }
+      long tick = ++currentTick;
+      // turn over the higher levels whose slot boundary this is, coarsest
+      // first, so their values can fall through more than one level
+      for (int level = LEVELS - 1; level > 0; level--) {
+        if ((tick & ((1L << (level * SLOT_BITS)) - 1)) == 0)
+          cascade(level, (int)(tick >>> (level * SLOT_BITS)) & SLOT_MASK);
+      }
+      int slot = (int)tick & SLOT_MASK;
+      Node n = detach(0, slot);
+      if (n != null) {
+        count += drain(n, into);
+        if (oneTick) break;
+      }
+    }
+    return count;
+  }
+
+  /** Marks the nodes of a detached slot as run and adds them in due order */
+  private int drain(Node n, Collection<? super E> into) {
+    while (n != null) {
+      Node next = n.next;
+      n.next = n.prev = null;
+      n.bucket = -1;
+      n.hasRun = true;
+      batch.add(n);
+      n = next;
+    }
+    int count = batch.size();
+    size -= count;
+    if (count > 1) batch.sort(dueOrder);
+    for (int i = 0; i < count; i++)
+      into.add(batch.get(i).value);
+    batch.clear();
+    return count;
+  }
+
+  /**
+   * The time of the next tick that has something in the lowest level of the
+   * wheel, or Long.MAX_VALUE if the lowest level is empty. Values further out
+   * may come due sooner than the higher levels' next turnover, so this is
+   * only a hint for how long it is safe to wait.
+   */
+  public synchronized long nextTime() {
+    long mask = occupied[0];
+    if (mask == 0) return Long.MAX_VALUE;
+    int from = (int)(currentTick + 1) & SLOT_MASK;
+    // slots from the next tick onward, wrapping around
+    long rotated = Long.rotateRight(mask, from);
+    return origin + (currentTick + 1 + Long.numberOfTrailingZeros(rotated))
+        * tickLength;
+  }
+
+  /** Puts a node in the slot for its tick, relative to the current tick */
+  private void insert(Node n) {
+    long diff = n.tick ^ currentTick;
+    int level = (63 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS;
+    int slot = (int)(n.tick >>> (level * SLOT_BITS)) & SLOT_MASK;
+    int bucket = level * SLOTS + slot;
+    Node head = slots[bucket];
+    n.next = head;
+    n.prev = null;
+    if (head != null) head.prev = n;
+    slots[bucket] = n;
+    n.bucket = bucket;
+    occupied[level] |= 1L << slot;
+  }
+
+  /** Unlinks a node from its slot */
+  private void unlink(Node n) {
+    int bucket = n.bucket;
+    if (n.prev != null) n.prev.next = n.next;
+    else slots[bucket] = n.next;
+    if (n.next != null) n.next.prev = n.prev;
+    if (slots[bucket] == null)
+      occupied[bucket / SLOTS] &= ~(1L << (bucket & SLOT_MASK));
+    n.next = n.prev = null;
+    n.bucket = -1;
+  }
+
+  /** Empties a slot, returning the list that was in it */
+  private Node detach(int level, int slot) {
+    int bucket = level * SLOTS + slot;
+    Node head = slots[bucket];
+    slots[bucket] = null;
+    occupied[level] &= ~(1L << slot);
+    return head;
+  }
+
+  /** Moves the contents of a slot down to where they now belong */
+  private void cascade(int level, int slot) {
+    Node n = detach(level, slot);
+    while (n != null) {
+      Node next = n.next;
+      insert(n);
+      n = next;
+    }
+  }
+
+
+  private class Node implements Cancellable {
+    boolean hasRun = false;
+    boolean cancelled = false;
+    final E value;
+    final long time;
+    final long tick;
+    final long seq;
+    int bucket = -1;
+    Node prev, next;
+
+    Node(E value, long time, long tick, long seq) {
+      this.value = value;
+      this.time = time;
+      this.tick = tick;
+      this.seq = seq;
+    }
+
+    @Override
+    public boolean hasRun() {
+      synchronized (TimingWheel.this) {
+        return hasRun;
+      }
+    }
+
+    @Override
+    public boolean isCancelled() {
+      synchronized (TimingWheel.this) {
+        return cancelled;
+      }
+    }
+
+    @Override
+    public boolean cancel() {
+      synchronized (TimingWheel.this) {
+        if (cancelled) return true;
+        if (hasRun) return false;
+        unlink(this);
+        size--;
+        return (cancelled = true);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return value + " @" + time;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package widders.util;
+
+import java.util.Arrays;
+
+/**
+ * The shape of a ValueTable: which key is held in which slot. Layouts are
+ * immutable and shared, in the manner of hidden classes; every table that had
+ * the same keys added in the same order from the same root layout has the same
+ * layout, so the key to slot mapping is stored once instead of per table.
+ *
+ * Adding a key to a layout gives the next layout, and that transition is
+ * cached, so tables that grow alike walk the same chain of layouts.
+ *
+ * @author widders
+ */
+public final class ValueLayout {
+  /** Layouts with more keys than this get a hash index */
+  private static final int LINEAR_LIMIT = 8;
+
+  /* The key of each slot, in the order they were added */
+  private final int[] keys;
+  /* Open addressing index of slot + 1 by key, or null if small */
+  private final int[] index;
+
+  /* The most recent transition, which is usually the only one */
+  private volatile ValueLayout next;
+  /* Every transition from this layout, by the key added; created if there is
+   * more than one */
+  private volatile ConcurrentLongMap<ValueLayout> transitions;
+
+  /** Creates a new, empty root layout */
+  public ValueLayout() {
+    this(new int[0]);
+  }
+
+  private ValueLayout(int[] keys) {
+    this.keys = keys;
+    if (keys.length <= LINEAR_LIMIT) {
+      index = null;
+    } else {
+      index = new int[Integer.highestOneBit(keys.length * 2 - 1) << 1];
+      int mask = index.length - 1;
+      for (int slot = 0; slot < keys.length; slot++) {
+        int i = hash(keys[slot]) & mask;
+        while (index[i] != 0)
+          i = (i + 1) & mask;
+        index[i] = slot + 1;
+      }
+    }
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /** The number of slots */
+  public int size() {
+    return keys.length;
+  }
+
+  /** Returns the key held in the given slot */
+  public int key(int slot) {
+    return keys[slot];
+  }
+
+  /** Returns the slot that holds [key], or -1 */
+  public int slotOf(int key) {
+    if (index == null) {
+      for (int slot = 0; slot < keys.length; slot++)
+        if (keys[slot] == key) return slot;
+      return -1;
+    }
+    int mask = index.length - 1;
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      int s = index[i];
+      if (s == 0) return -1;
+      if (keys[s - 1] == key) return s - 1;
+    }
+  }
+
+  /**
+   * Returns the layout with [key] added in a new last slot. The key must not
+   * already be in this layout.
+   */
+  public ValueLayout with(int key) {
+    ValueLayout n = next;
+    if (n != null && n.keys[keys.length] == key)
+      return n;
+    ConcurrentLongMap<ValueLayout> t = transitions;
+    if (t != null && (n = t.get(key)) != null)
+      return next = n;
+
+    synchronized (this) {
+      if ((n = next) != null && n.keys[keys.length] == key)
+        return n;
+      if ((t = transitions) != null && (n = t.get(key)) != null)
+        return next = n;
+      int[] k = Arrays.copyOf(keys, keys.length + 1);
+      k[keys.length] = key;
+      n = new ValueLayout(k);
+      if (next == null) {
+        next = n; // the first transition needs no map
+      } else {
+        if (t == null) {
+          t = new ConcurrentLongMap<ValueLayout>(4, 1);
+          ValueLayout first = next;
+          t.put(first.keys[keys.length], first);
+          transitions = t;
+        }
+        t.put(key, n);
+        next = n;
+      }
+      return n;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package widders.util;
+
+import java.util.Arrays;
+
+import widders.util.Value.ValueType;
+
+/**
+ * A small map from int keys (such as interned value names) to values, storing
+ * integer, floating and boolean values unboxed so that setting them does not
+ * allocate. Value objects are made only when one is asked for; strings and
+ * other values are kept as the Value they were given as.
+ *
+ * Which key is in which slot is kept in a shared ValueLayout, so a table holds
+ * only its layout and its slot arrays. Tables of the same kind of object
+ * should start from the same root layout so that they share their layouts.
+ * A removed value leaves its slot empty in the layout, to be reused if the
+ * key is set again.
+ *
+ * @author widders
+ */
+public final class ValueTable {
+  private static final byte UNSET = 0, INT = 1, FLOAT = 2, BOOLEAN = 3, OTHER = 4;
+  private static final byte[] NO_TYPES = new byte[0];
+  private static final long[] NO_BITS = new long[0];
+
+  private ValueLayout layout;
+  private byte[] types = NO_TYPES;
+  /* the long, the raw bits of the double, or 0 or 1 */
+  private long[] bits = NO_BITS;
+  /* Values of other types; allocated the first time one is stored */
+  private Value[] others;
+  private int count;
+
+  /** Creates an empty table with a layout of its own */
+  public ValueTable() {
+    this(new ValueLayout());
+  }
+
+  /** Creates an empty table starting from the given root layout */
+  public ValueTable(ValueLayout root) {
+    layout = root;
+  }
+
+  /** Returns the slot of [key] if it is set, or -1 */
+  private int slotOf(int key) {
+    int i = layout.slotOf(key);
+    return i < 0 || types[i] == UNSET ? -1 : i;
+  }
+
+  /** Returns the current layout */
+  public synchronized ValueLayout layout() {
+    return layout;
+  }
+
+  public synchronized ValueType type(int key) {
+    int i = slotOf(key);
+    return i < 0 ? ValueType.UNSET
+        : types[i] == OTHER ? others[i].type()
+        : TYPES[types[i]];
+  }
+
+  private static final ValueType[] TYPES = {
+    ValueType.UNSET, ValueType.INT, ValueType.FLOAT, ValueType.BOOLEAN
+  };
+
+  public synchronized boolean contains(int key) {
+    return slotOf(key) >= 0;
+  }
+
+  /** Returns the value as an integer, as Value.toInt() would */
+  public synchronized long getInt(int key) {
+    return intAt(slotOf(key));
+  }
+
+  /** Returns the value as a floating point number, as Value.toFloat() would */
+  public synchronized double getFloat(int key) {
+    return floatAt(slotOf(key));
+  }
+
+  /** Returns the value as a boolean, as Value.toBoolean() would */
+  public synchronized boolean getBoolean(int key) {
+    return booleanAt(slotOf(key));
+  }
+
+  private long intAt(int i) {
+    if (i < 0) return Value.DEFAULT_INT;
+    switch (types[i]) {
+      case INT: return bits[i];
+      case FLOAT: return (int)Double.longBitsToDouble(bits[i]);
+      case BOOLEAN: return bits[i];
+      default: return others[i].toInt();
+    }
+  }
+
+  private double floatAt(int i) {
+    if (i < 0) return Value.DEFAULT_FLOAT;
+    switch (types[i]) {
+      case INT: return (double)bits[i];
+      case FLOAT: return Double.longBitsToDouble(bits[i]);
+      case BOOLEAN: return (double)bits[i];
+      default: return others[i].toFloat();
+    }
+  }
+
+  private boolean booleanAt(int i) {
+    if (i < 0) return Value.DEFAULT_BOOLEAN;
+    switch (types[i]) {
+      case INT: return bits[i] != 0L;
+      case FLOAT: return Double.longBitsToDouble(bits[i]) != 0.0;
+      case BOOLEAN: return bits[i] != 0L;
+      default: return others[i].toBoolean();
+    }
+  }
+
+  /** Returns the value as a Value object, or the empty Value if it is unset */
+  public synchronized Value get(int key) {
+    return valueAt(slotOf(key));
+  }
+
+  private Value valueAt(int i) {
+    if (i < 0) return Value.make();
+    switch (types[i]) {
+      case INT: return Value.make(bits[i]);
+      case FLOAT: return Value.make(Double.longBitsToDouble(bits[i]));
+      case BOOLEAN: return Value.make(bits[i] != 0L);
+      default: return others[i];
+    }
+  }
+
+  public synchronized void setInt(int key, long val) {
+    put(key, INT, val, null);
+  }
+
+  public synchronized void setFloat(int key, double val) {
+    put(key, FLOAT, Double.doubleToRawLongBits(val), null);
+  }
+
+  public synchronized void setBoolean(int key, boolean val) {
+    put(key, BOOLEAN, val ? 1L : 0L, null);
+  }
+
+  /** Sets the value; an unset or null Value removes it */
+  public synchronized void set(int key, Value val) {
+    if (val == null || val.isUnset()) {
+      remove(key);
+      return;
+    }
+    switch (val.type()) {
+      case INT: put(key, INT, val.toInt(), null); break;
+      case FLOAT: put(key, FLOAT, Double.doubleToRawLongBits(val.toFloat()), null); break;
+      case BOOLEAN: put(key, BOOLEAN, val.toBoolean() ? 1L : 0L, null); break;
+      default: put(key, OTHER, 0L, val);
+    }
+  }
+
+  /**
+   * Adds [delta] to the value, which is first converted to an integer if it
+   * is not one, and returns the result
+   */
+  public synchronized long addInt(int key, long delta) {
+    int i = slotOf(key);
+    if (i >= 0 && types[i] == INT)
+      return bits[i] += delta;
+    long result = intAt(i) + delta;
+    put(key, INT, result, null);
+    return result;
+  }
+
+  /** Sets the value and returns the previous one as a Value */
+  public synchronized Value swap(int key, Value val) {
+    Value old = valueAt(slotOf(key));
+    set(key, val);
+    return old;
+  }
+
+  /**
+   * Sets the value to an integer and returns the previous one as a Value,
+   * which is the only Value made
+   */
+  public synchronized Value swapInt(int key, long val) {
+    Value old = valueAt(slotOf(key));
+    put(key, INT, val, null);
+    return old;
+  }
+
+  /**
+   * Sets the value to a floating point number and returns the previous one as
+   * a Value, which is the only Value made
+   */
+  public synchronized Value swapFloat(int key, double val) {
+    Value old = valueAt(slotOf(key));
+    put(key, FLOAT, Double.doubleToRawLongBits(val), null);
+    return old;
+  }
+
+  /**
+   * Sets the value to a boolean and returns the previous one as a Value,
+   * which is the only Value made
+   */
+  public synchronized Value swapBoolean(int key, boolean val) {
+    Value old = valueAt(slotOf(key));
+    put(key, BOOLEAN, val ? 1L : 0L, null);
+    return old;
+  }
+
+  /** Removes the value; returns true iff it was set */
+  public synchronized boolean remove(int key) {
+    int i = slotOf(key);
+    if (i < 0) return false;
+    types[i] = UNSET;
+    bits[i] = 0L;
+    if (others != null) others[i] = null;
+    count--;
+    return true;
+  }
+
+  /** The number of values set */
+  public synchronized int size() {
+    return count;
+  }
+
+  private void put(int key, byte type, long b, Value other) {
+    int i = layout.slotOf(key);
+    if (i < 0) {
+      layout = layout.with(key);
+      i = layout.size() - 1;
+      types = Arrays.copyOf(types, i + 1);
+      bits = Arrays.copyOf(bits, i + 1);
+      if (others != null) others = Arrays.copyOf(others, i + 1);
+    }
+    if (types[i] == UNSET) count++;
+    types[i] = type;
+    bits[i] = b;
+    if (other != null) {
+      if (others == null) others = new Value[types.length];
+      others[i] = other;
+    } else if (others != null) {
+      others[i] = null;
+    }
+  }
+}